@@ -0,0 +1,153 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.example;
+
+import java.util.Random;
+
+import org.doggateway.libraries.intel.tinyb.service.MovementBatchConverter;
+
+/**
+ * Compares the per-value conversion of SensorTag movement payloads, as done
+ * by the notification example, with the batch conversion provided by
+ * {@link MovementBatchConverter}. Run with the number of samples to convert
+ * as optional argument (default 1000000).
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public class MovementConversionBenchmark
+{
+	// the number of warm-up and measured rounds
+	private static final int WARMUP_ROUNDS = 10;
+	private static final int ROUNDS = 10;
+
+	// the accelerometer range used by the example (8G)
+	private static final byte ACC_RANGE = 0x02;
+
+	// prevents the JIT from removing the per-value conversion
+	private static float sink;
+
+	public static void main(String[] args)
+	{
+		int samples = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+
+		// random payloads, packed as in a capture
+		byte[] packed = new byte[samples * MovementBatchConverter.SAMPLE_SIZE];
+		new Random(42).nextBytes(packed);
+
+		float[][] columns = MovementBatchConverter.newColumns(samples);
+		MovementBatchConverter converter = new MovementBatchConverter(
+				MovementConversionBenchmark.ACC_RANGE);
+
+		// warm up both paths
+		for (int i = 0; i < MovementConversionBenchmark.WARMUP_ROUNDS; i++)
+		{
+			MovementConversionBenchmark.convertPerValue(packed, samples,
+					columns);
+			converter.convert(packed, 0, samples, columns, 0);
+		}
+
+		long perValue = Long.MAX_VALUE;
+		long batch = Long.MAX_VALUE;
+		for (int i = 0; i < MovementConversionBenchmark.ROUNDS; i++)
+		{
+			long start = System.nanoTime();
+			MovementConversionBenchmark.convertPerValue(packed, samples,
+					columns);
+			perValue = Math.min(perValue, System.nanoTime() - start);
+
+			start = System.nanoTime();
+			converter.convert(packed, 0, samples, columns, 0);
+			batch = Math.min(batch, System.nanoTime() - start);
+		}
+
+		System.out.println(String.format(
+				"%d samples, best of %d rounds: per-value %.2f ms (%.1f Msamples/s), batch %.2f ms (%.1f Msamples/s), speedup %.2fx",
+				samples, MovementConversionBenchmark.ROUNDS, perValue / 1e6,
+				samples * 1e3 / perValue, batch / 1e6,
+				samples * 1e3 / batch, (double) perValue / batch));
+		System.out.println("(checksum " + (MovementConversionBenchmark.sink
+				+ columns[0][samples / 2]) + ")");
+	}
+
+	/**
+	 * The per-value conversion, resolving the accelerometer range of every
+	 * value as in the notification example.
+	 */
+	private static void convertPerValue(byte[] packed, int samples,
+			float[][] columns)
+	{
+		for (int i = 0; i < samples; i++)
+		{
+			int p = i * MovementBatchConverter.SAMPLE_SIZE;
+			for (int axis = 0; axis < 3; axis++)
+			{
+				columns[axis][i] = MovementConversionBenchmark
+						.gyroConvert(MovementConversionBenchmark.raw(packed,
+								p + axis * 2));
+				columns[axis + 3][i] = MovementConversionBenchmark.accConvert(
+						MovementConversionBenchmark.raw(packed,
+								p + 6 + axis * 2),
+						MovementConversionBenchmark.ACC_RANGE);
+				columns[axis + 6][i] = MovementConversionBenchmark
+						.raw(packed, p + 12 + axis * 2);
+			}
+		}
+		MovementConversionBenchmark.sink += columns[3][samples - 1];
+	}
+
+	private static int raw(byte[] packed, int offset)
+	{
+		return (short) ((packed[offset] & 0xff) | (packed[offset + 1] << 8));
+	}
+
+	private static float gyroConvert(int value)
+	{
+		return (value * 1.0f) / (65536f / 500f);
+	}
+
+	private static float accConvert(int value, byte config)
+	{
+		float valueFloat = 0;
+		switch (config)
+		{
+			case 0x00:
+			{
+				valueFloat = (value * 1.0f) / (32768 / 2);
+				break;
+			}
+			case 0x01:
+			{
+				valueFloat = (value * 1.0f) / (32768 / 4);
+				break;
+			}
+			case 0x02:
+			{
+				valueFloat = (value * 1.0f) / (32768 / 8);
+				break;
+			}
+			case 0x03:
+			{
+				valueFloat = (value * 1.0f) / (32768 / 16);
+				break;
+			}
+		}
+
+		return valueFloat;
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+
+/**
+ * Spreads device connections over all the HCI controllers available on the
+ * gateway. Every controller supports a limited number of concurrent LE
+ * connections, therefore new connections are placed on the adapter currently
+ * holding the lowest amount of connections, unless the device has been
+ * explicitly pinned to a given adapter.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class AdapterLoadBalancer
+{
+	// the device address -> adapter address pinning map
+	private final ConcurrentHashMap<String, String> pinnedDevices;
+
+	// the adapter address -> number of connections currently being set up
+	private final ConcurrentHashMap<String, AtomicInteger> pendingConnections;
+
+	/**
+	 * Creates a new balancer with no pinned devices.
+	 */
+	AdapterLoadBalancer()
+	{
+		this.pinnedDevices = new ConcurrentHashMap<>();
+		this.pendingConnections = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Pins the device having the given address to the adapter having the given
+	 * address, all subsequent connections to the device will be placed on such
+	 * adapter, regardless of its load.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device to pin.
+	 * @param adapterAddress
+	 *            The MAC address of the adapter to which the device shall be
+	 *            pinned.
+	 */
+	void pin(String deviceAddress, String adapterAddress)
+	{
+		this.pinnedDevices.put(deviceAddress, adapterAddress);
+	}
+
+	/**
+	 * Removes the pinning of the device having the given address, if any.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device to un-pin.
+	 */
+	void unpin(String deviceAddress)
+	{
+		this.pinnedDevices.remove(deviceAddress);
+	}
+
+	/**
+	 * Provides the address of the adapter to which the given device is pinned
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device.
+	 * @return The adapter address, or null if the device is not pinned.
+	 */
+	String getPinnedAdapter(String deviceAddress)
+	{
+		return this.pinnedDevices.get(deviceAddress);
+	}
+
+	/**
+	 * Counts the connections currently handled by the given adapter, including
+	 * the connections being set up through the balancer.
+	 * 
+	 * @param adapter
+	 *            The adapter to check.
+	 * @return The number of connections held by the adapter.
+	 */
+	int getConnectionCount(BluetoothAdapter adapter)
+	{
+		// the number of connected devices
+		int connections = 0;
+
+		// count the devices currently connected through this adapter
+		for (BluetoothDevice device : adapter.getDevices())
+		{
+			if (device.getConnected())
+				connections++;
+		}
+
+		// add the connections currently being set up
+		AtomicInteger pending = this.pendingConnections
+				.get(adapter.getAddress());
+		if (pending != null)
+			connections += pending.get();
+
+		return connections;
+	}
+
+	/**
+	 * Provides the connection count of all the given adapters, in a map having
+	 * the adapter address as key.
+	 * 
+	 * @param adapters
+	 *            The adapters to check.
+	 * @return The adapter address -> connection count map.
+	 */
+	Map<String, Integer> getConnectionCounts(List<BluetoothAdapter> adapters)
+	{
+		// preserve the adapter order given by the manager
+		Map<String, Integer> counts = new LinkedHashMap<>();
+
+		for (BluetoothAdapter adapter : adapters)
+			counts.put(adapter.getAddress(), this.getConnectionCount(adapter));
+
+		return counts;
+	}
+
+	/**
+	 * Selects the adapter on which a connection towards the given device shall
+	 * be placed: the pinned adapter, if present, or the powered
+	 * adapter having the lowest number of connections.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device to connect.
+	 * @param adapters
+	 *            The available adapters.
+	 * @return The selected adapter, or null if no adapter is available.
+	 */
+	BluetoothAdapter select(String deviceAddress,
+			List<BluetoothAdapter> adapters)
+	{
+		// the pinned adapter address, if any
+		String pinnedAddress = this.pinnedDevices.get(deviceAddress);
+
+		// the least loaded adapter
+		BluetoothAdapter selected = null;
+		int selectedLoad = Integer.MAX_VALUE;
+
+		for (BluetoothAdapter adapter : adapters)
+		{
+			// pinned adapters win regardless of their load
+			if ((pinnedAddress != null)
+					&& (pinnedAddress.equals(adapter.getAddress())))
+				return adapter;
+
+			// skip adapters that cannot currently handle connections
+			if (!adapter.getPowered())
+				continue;
+
+			int load = this.getConnectionCount(adapter);
+			if (load < selectedLoad)
+			{
+				selected = adapter;
+				selectedLoad = load;
+			}
+		}
+
+		return selected;
+	}
+
+	/**
+	 * Atomically selects the adapter on which a connection towards the given
+	 * device shall be placed (see {@link #select(String, List)}) and records
+	 * that a connection is being set up on it, so that concurrent
+	 * reservations never pick the same adapter based on the same load. The
+	 * reservation must be released by {@link #connectionEnded(String)}.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device to connect.
+	 * @param adapters
+	 *            The candidate adapters, e.g., the ones seeing the device.
+	 * @return The reserved adapter, or null if no adapter is available.
+	 */
+	synchronized BluetoothAdapter reserve(String deviceAddress,
+			List<BluetoothAdapter> adapters)
+	{
+		BluetoothAdapter selected = this.select(deviceAddress, adapters);
+
+		// a pinned device can only be connected through its adapter
+		String pinnedAddress = this.pinnedDevices.get(deviceAddress);
+		if ((selected != null) && (pinnedAddress != null)
+				&& (!pinnedAddress.equals(selected.getAddress())))
+			selected = null;
+
+		if (selected != null)
+			this.connectionStarted(selected.getAddress());
+
+		return selected;
+	}
+
+	/**
+	 * Records that a connection is being set up on the given adapter, so that
+	 * concurrent selections take it into account before the device actually
+	 * reports itself as connected.
+	 * 
+	 * @param adapterAddress
+	 *            The address of the adapter handling the connection.
+	 */
+	void connectionStarted(String adapterAddress)
+	{
+		AtomicInteger pending = this.pendingConnections.get(adapterAddress);
+		if (pending == null)
+		{
+			AtomicInteger newPending = new AtomicInteger();
+			pending = this.pendingConnections.putIfAbsent(adapterAddress,
+					newPending);
+			if (pending == null)
+				pending = newPending;
+		}
+		pending.incrementAndGet();
+	}
+
+	/**
+	 * Records the end (successful or not) of a connection set up on the given
+	 * adapter.
+	 * 
+	 * @param adapterAddress
+	 *            The address of the adapter handling the connection.
+	 */
+	void connectionEnded(String adapterAddress)
+	{
+		AtomicInteger pending = this.pendingConnections.get(adapterAddress);
+		if (pending != null)
+			pending.decrementAndGet();
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Receives presence events about the devices tracked by the advertisement
+ * tracking mode of the {@link BluetoothService}. Methods are called on the
+ * service threads and shall not block.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public interface AdvertisementListener
+{
+	/**
+	 * Called when a device is seen for the first time, or again after having
+	 * left.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device.
+	 * @param rssi
+	 *            The RSSI at which the device has been seen, in dBm.
+	 */
+	public void entered(String deviceAddress, short rssi);
+
+	/**
+	 * Called when a device has not been seen for longer than the configured
+	 * absence timeout.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device.
+	 * @param lastSeen
+	 *            The time at which the device has been last seen, in
+	 *            milliseconds since the epoch.
+	 */
+	public void left(String deviceAddress, long lastSeen);
+}
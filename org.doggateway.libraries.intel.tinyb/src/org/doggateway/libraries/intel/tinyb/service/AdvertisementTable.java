@@ -0,0 +1,705 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The presence table of the advertisement tracking mode: for every tracked
+ * device it keeps the first and last seen times, the smoothed RSSI and the
+ * latest manufacturer specific data. Devices are keyed by their MAC address,
+ * packed in a <code>long</code>, in an open addressing hash table made of
+ * primitive columns allocated once, at the table capacity: lookups are O(1)
+ * and the heap footprint does not grow with the number of tracked devices.
+ * Devices seen when the table is full are not tracked, and counted as
+ * dropped.
+ * <p>
+ * A slot may also hold a device that is only a candidate, i.e., listed by the
+ * adapters and watched by the {@link AdvertisementTracker}, but not sighted
+ * yet: candidates occupy a slot, bounding the tracker state by the table
+ * capacity, yet they are not present and are invisible to the public
+ * accessors. A candidate enters when it is first sighted.
+ * <p>
+ * Lookups accept either the textual MAC address or its packed form (see
+ * {@link #parseAddress(String)}), the latter avoiding any allocation.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class AdvertisementTable
+{
+	// the maximum manufacturer specific data stored per device, in bytes (a
+	// legacy advertisement carries at most 27 bytes after the company id)
+	public static final int MAX_MANUFACTURER_DATA = 27;
+
+	// the weight of a new RSSI sample in the smoothed RSSI
+	static float RSSI_SMOOTHING = 0.25f;
+
+	// the bit marking an occupied key slot, beyond the 48 address bits
+	private static final long OCCUPIED = 1L << 48;
+
+	// the bit marking a present device, not set for candidates
+	private static final long PRESENT = 1L << 49;
+
+	// the address bits of a key
+	private static final long ADDRESS_MASK = AdvertisementTable.OCCUPIED - 1;
+
+	// the hex digits
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+	// the slot keys: the packed address with the occupied bit, 0 if empty
+	private final long[] keys;
+
+	// the first and last seen times, in milliseconds since the epoch
+	private final long[] firstSeen;
+	private final long[] lastSeen;
+
+	// the smoothed RSSI, in dBm
+	private final float[] rssi;
+
+	// the manufacturer company id, -1 if unknown
+	private final int[] manufacturerId;
+
+	// the manufacturer data slab, MAX_MANUFACTURER_DATA bytes per slot
+	private final byte[] manufacturerData;
+
+	// the manufacturer data length per slot
+	private final byte[] manufacturerLength;
+
+	// the tracker state attached to each slot, e.g., its RSSI subscription
+	private final Object[] attachments;
+
+	// the slot index mask
+	private final int mask;
+
+	// the maximum number of tracked devices
+	private final int capacity;
+
+	// the number of present devices
+	private int size;
+
+	// the number of occupied slots, candidates included
+	private int used;
+
+	// the number of devices not tracked since the table was full
+	private long dropped;
+
+	/**
+	 * Creates an empty table.
+	 * 
+	 * @param capacity
+	 *            The maximum number of tracked devices.
+	 */
+	AdvertisementTable(int capacity)
+	{
+		if (capacity < 1)
+			throw new IllegalArgumentException(
+					"Invalid advertisement table capacity: " + capacity);
+
+		// keep the load factor under 0.75, with a power of 2 slot count
+		int slots = Integer.highestOneBit((capacity * 4 / 3) | 1) << 1;
+
+		this.capacity = capacity;
+		this.mask = slots - 1;
+		this.keys = new long[slots];
+		this.firstSeen = new long[slots];
+		this.lastSeen = new long[slots];
+		this.rssi = new float[slots];
+		this.manufacturerId = new int[slots];
+		this.manufacturerData = new byte[slots
+				* AdvertisementTable.MAX_MANUFACTURER_DATA];
+		this.manufacturerLength = new byte[slots];
+		this.attachments = new Object[slots];
+	}
+
+	/**
+	 * Packs the given textual MAC address (e.g., "B0:B4:48:C9:AB:02") in a
+	 * long.
+	 * 
+	 * @param address
+	 *            The textual address.
+	 * @return The packed address, or -1 if the address is not valid.
+	 */
+	public static long parseAddress(String address)
+	{
+		if ((address == null) || (address.length() != 17))
+			return -1;
+
+		long packed = 0;
+		for (int i = 0; i < 17; i++)
+		{
+			char c = address.charAt(i);
+			if (i % 3 == 2)
+			{
+				if (c != ':')
+					return -1;
+				continue;
+			}
+
+			int digit = Character.digit(c, 16);
+			if (digit < 0)
+				return -1;
+			packed = (packed << 4) | digit;
+		}
+		return packed;
+	}
+
+	/**
+	 * Formats the given packed MAC address.
+	 * 
+	 * @param packed
+	 *            The packed address.
+	 * @return The textual address, with upper case hex digits.
+	 */
+	public static String formatAddress(long packed)
+	{
+		char[] address = new char[17];
+		for (int i = 0; i < 6; i++)
+		{
+			int b = (int) (packed >>> (40 - i * 8)) & 0xff;
+			address[i * 3] = AdvertisementTable.HEX[b >>> 4];
+			address[i * 3 + 1] = AdvertisementTable.HEX[b & 0x0f];
+			if (i < 5)
+				address[i * 3 + 2] = ':';
+		}
+		return new String(address);
+	}
+
+	/**
+	 * @return the maximum number of tracked devices
+	 */
+	public int getCapacity()
+	{
+		return this.capacity;
+	}
+
+	/**
+	 * @return the number of currently tracked devices
+	 */
+	public synchronized int size()
+	{
+		return this.size;
+	}
+
+	/**
+	 * @return the number of devices not tracked since the table was full,
+	 *         each counted once until a slot is freed
+	 */
+	public synchronized long getDropped()
+	{
+		return this.dropped;
+	}
+
+	/**
+	 * Checks if the given device is currently present.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return true if present, false otherwise.
+	 */
+	public synchronized boolean isPresent(long address)
+	{
+		return this.presentSlotOf(address) >= 0;
+	}
+
+	/**
+	 * Checks if the given device is currently present.
+	 * 
+	 * @param address
+	 *            The device MAC address.
+	 * @return true if present, false otherwise.
+	 */
+	public boolean isPresent(String address)
+	{
+		return this.isPresent(AdvertisementTable.parseAddress(address));
+	}
+
+	/**
+	 * Provides the time at which the given device has been last seen.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return The last seen time in milliseconds since the epoch, -1 if the
+	 *         device is not present.
+	 */
+	public synchronized long getLastSeen(long address)
+	{
+		int slot = this.presentSlotOf(address);
+		return (slot >= 0) ? this.lastSeen[slot] : -1;
+	}
+
+	/**
+	 * Provides the time at which the given device has been last seen.
+	 * 
+	 * @param address
+	 *            The device MAC address.
+	 * @return The last seen time in milliseconds since the epoch, -1 if the
+	 *         device is not present.
+	 */
+	public long getLastSeen(String address)
+	{
+		return this.getLastSeen(AdvertisementTable.parseAddress(address));
+	}
+
+	/**
+	 * Provides the time since which the given device is present.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return The time at which the device entered, in milliseconds since the
+	 *         epoch, -1 if the device is not present.
+	 */
+	public synchronized long getFirstSeen(long address)
+	{
+		int slot = this.presentSlotOf(address);
+		return (slot >= 0) ? this.firstSeen[slot] : -1;
+	}
+
+	/**
+	 * Provides the time since which the given device is present.
+	 * 
+	 * @param address
+	 *            The device MAC address.
+	 * @return The time at which the device entered, in milliseconds since the
+	 *         epoch, -1 if the device is not present.
+	 */
+	public long getFirstSeen(String address)
+	{
+		return this.getFirstSeen(AdvertisementTable.parseAddress(address));
+	}
+
+	/**
+	 * Provides the smoothed RSSI of the given device.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return The smoothed RSSI in dBm, {@link Float#NaN} if the device is not
+	 *         present or no RSSI has been reported yet.
+	 */
+	public synchronized float getRssi(long address)
+	{
+		int slot = this.presentSlotOf(address);
+		return (slot >= 0) ? this.rssi[slot] : Float.NaN;
+	}
+
+	/**
+	 * Provides the smoothed RSSI of the given device.
+	 * 
+	 * @param address
+	 *            The device MAC address.
+	 * @return The smoothed RSSI in dBm, {@link Float#NaN} if the device is not
+	 *         present or no RSSI has been reported yet.
+	 */
+	public float getRssi(String address)
+	{
+		return this.getRssi(AdvertisementTable.parseAddress(address));
+	}
+
+	/**
+	 * Provides the company id of the latest manufacturer specific data of the
+	 * given device.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return The company id, -1 if the device is not present or no
+	 *         manufacturer data has been reported.
+	 */
+	public synchronized int getManufacturerId(long address)
+	{
+		int slot = this.presentSlotOf(address);
+		return (slot >= 0) ? this.manufacturerId[slot] : -1;
+	}
+
+	/**
+	 * Provides the company id of the latest manufacturer specific data of the
+	 * given device.
+	 * 
+	 * @param address
+	 *            The device MAC address.
+	 * @return The company id, -1 if the device is not present or no
+	 *         manufacturer data has been reported.
+	 */
+	public int getManufacturerId(String address)
+	{
+		return this.getManufacturerId(AdvertisementTable.parseAddress(address));
+	}
+
+	/**
+	 * Copies the latest manufacturer specific data of the given device.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @param data
+	 *            The array receiving the data, at least
+	 *            {@link #MAX_MANUFACTURER_DATA} bytes long to never truncate
+	 *            it.
+	 * @return The length of the data, -1 if the device is not present.
+	 */
+	public synchronized int getManufacturerData(long address, byte[] data)
+	{
+		int slot = this.presentSlotOf(address);
+		if (slot < 0)
+			return -1;
+
+		int length = Math.min(this.manufacturerLength[slot], data.length);
+		System.arraycopy(this.manufacturerData,
+				slot * AdvertisementTable.MAX_MANUFACTURER_DATA, data, 0,
+				length);
+		return length;
+	}
+
+	/**
+	 * Copies the latest manufacturer specific data of the given device.
+	 * 
+	 * @param address
+	 *            The device MAC address.
+	 * @param data
+	 *            The array receiving the data.
+	 * @return The length of the data, -1 if the device is not present.
+	 */
+	public int getManufacturerData(String address, byte[] data)
+	{
+		return this.getManufacturerData(
+				AdvertisementTable.parseAddress(address), data);
+	}
+
+	/**
+	 * Copies the packed addresses of the present devices.
+	 * 
+	 * @param addresses
+	 *            The array receiving the addresses.
+	 * @return The number of copied addresses, limited by the array length.
+	 */
+	public synchronized int getAddresses(long[] addresses)
+	{
+		int count = 0;
+		for (int i = 0; (i < this.keys.length) && (count < addresses.length); i++)
+		{
+			if ((this.keys[i] & AdvertisementTable.PRESENT) != 0)
+				addresses[count++] = this.keys[i]
+						& AdvertisementTable.ADDRESS_MASK;
+		}
+		return count;
+	}
+
+	/**
+	 * Records that the given device has been seen.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @param rssi
+	 *            The RSSI in dBm, 0 if not available.
+	 * @param now
+	 *            The current time, in milliseconds since the epoch.
+	 * @return true if the device entered, i.e., it was not present, false
+	 *         otherwise, also when it cannot be tracked as the table is full.
+	 */
+	synchronized boolean seen(long address, short rssi, long now)
+	{
+		int slot = this.slotOf(address);
+		if (slot < 0)
+		{
+			if (this.used == this.capacity)
+				return false;
+			slot = this.insert(address, null, now);
+		}
+
+		this.lastSeen[slot] = now;
+		if (rssi != 0)
+			this.rssi[slot] = Float.isNaN(this.rssi[slot]) ? rssi
+					: this.rssi[slot] + AdvertisementTable.RSSI_SMOOTHING
+							* (rssi - this.rssi[slot]);
+
+		if ((this.keys[slot] & AdvertisementTable.PRESENT) != 0)
+			return false;
+
+		// the first sighting, the device enters
+		this.keys[slot] |= AdvertisementTable.PRESENT;
+		this.firstSeen[slot] = now;
+		this.size++;
+		return true;
+	}
+
+	/**
+	 * Reserves a slot for the given candidate device, not present until
+	 * sighted.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @param attachment
+	 *            The tracker state attached to the slot.
+	 * @param now
+	 *            The current time, in milliseconds since the epoch: the
+	 *            candidate expires if not sighted within the absence timeout.
+	 * @return true if the slot has been reserved, false if the device is
+	 *         already tracked or the table is full, in which case the device
+	 *         is counted as dropped.
+	 */
+	synchronized boolean reserve(long address, Object attachment, long now)
+	{
+		if (this.slotOf(address) >= 0)
+			return false;
+
+		if (this.used == this.capacity)
+		{
+			this.dropped++;
+			return false;
+		}
+
+		this.insert(address, attachment, now);
+		return true;
+	}
+
+	/**
+	 * @return true if a slot is available for a new device, false if the
+	 *         table is full
+	 */
+	synchronized boolean hasRoom()
+	{
+		return this.used < this.capacity;
+	}
+
+	/**
+	 * Checks if the given device occupies a slot, either present or
+	 * candidate.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return true if tracked, false otherwise.
+	 */
+	synchronized boolean isTracked(long address)
+	{
+		return this.slotOf(address) >= 0;
+	}
+
+	/**
+	 * Provides the tracker state attached to the slot of the given device.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @return The attachment, null if none or if the device is not tracked.
+	 */
+	synchronized Object getAttachment(long address)
+	{
+		int slot = this.slotOf(address);
+		return (slot >= 0) ? this.attachments[slot] : null;
+	}
+
+	/**
+	 * Stores the manufacturer specific data of the given device, if present.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @param companyId
+	 *            The company id.
+	 * @param data
+	 *            The data, truncated to {@link #MAX_MANUFACTURER_DATA} bytes.
+	 */
+	synchronized void setManufacturerData(long address, int companyId,
+			byte[] data)
+	{
+		int slot = this.slotOf(address);
+		if (slot >= 0)
+		{
+			int length = Math.min(data.length,
+					AdvertisementTable.MAX_MANUFACTURER_DATA);
+			System.arraycopy(data, 0, this.manufacturerData,
+					slot * AdvertisementTable.MAX_MANUFACTURER_DATA, length);
+			this.manufacturerLength[slot] = (byte) length;
+			this.manufacturerId[slot] = companyId;
+		}
+	}
+
+	/**
+	 * Collects the devices not seen since the given time, candidates not
+	 * sighted since their reservation included.
+	 * 
+	 * @param deadline
+	 *            The time before which devices are considered absent.
+	 * @param addresses
+	 *            The array receiving the packed addresses of absent devices.
+	 * @param lastSeen
+	 *            The array receiving their last seen times.
+	 * @return The number of absent devices, limited by the array lengths.
+	 */
+	synchronized int collectAbsent(long deadline, long[] addresses,
+			long[] lastSeen)
+	{
+		int count = 0;
+		int limit = Math.min(addresses.length, lastSeen.length);
+		for (int i = 0; (i < this.keys.length) && (count < limit); i++)
+		{
+			if ((this.keys[i] != 0) && (this.lastSeen[i] < deadline))
+			{
+				addresses[count] = this.keys[i]
+						& AdvertisementTable.ADDRESS_MASK;
+				lastSeen[count] = this.lastSeen[i];
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Removes the given device, present or candidate, if not seen since the
+	 * given time, closing the probe sequence gap by shifting back the
+	 * following entries, so that no tombstone is needed.
+	 * 
+	 * @param address
+	 *            The packed device address.
+	 * @param deadline
+	 *            The time before which the device is considered absent.
+	 * @return true if the device has been removed, false otherwise.
+	 */
+	synchronized boolean expire(long address, long deadline)
+	{
+		int hole = this.slotOf(address);
+		if ((hole < 0) || (this.lastSeen[hole] >= deadline))
+			return false;
+
+		if ((this.keys[hole] & AdvertisementTable.PRESENT) != 0)
+			this.size--;
+		this.used--;
+
+		int slot = hole;
+		while (true)
+		{
+			slot = (slot + 1) & this.mask;
+			if (this.keys[slot] == 0)
+				break;
+
+			// move the entry back if its home slot is not cyclically
+			// between the hole and its current slot
+			int home = this.hash(this.keys[slot]
+					& AdvertisementTable.ADDRESS_MASK);
+			if (((slot - home) & this.mask) >= ((slot - hole) & this.mask))
+			{
+				this.move(slot, hole);
+				hole = slot;
+			}
+		}
+
+		this.keys[hole] = 0;
+		this.attachments[hole] = null;
+		return true;
+	}
+
+	/**
+	 * Removes all the devices, candidates included.
+	 * 
+	 * @return The attachments of the removed devices.
+	 */
+	synchronized List<Object> clear()
+	{
+		List<Object> removed = new ArrayList<>();
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			if (this.attachments[i] != null)
+				removed.add(this.attachments[i]);
+			this.keys[i] = 0;
+			this.attachments[i] = null;
+		}
+		this.size = 0;
+		this.used = 0;
+		return removed;
+	}
+
+	/**
+	 * Inserts a device, as candidate, at the first free slot of its probe
+	 * sequence.
+	 * 
+	 * @return The slot.
+	 */
+	private int insert(long address, Object attachment, long now)
+	{
+		int slot = this.hash(address);
+		while (this.keys[slot] != 0)
+			slot = (slot + 1) & this.mask;
+
+		this.keys[slot] = address | AdvertisementTable.OCCUPIED;
+		this.firstSeen[slot] = now;
+		this.lastSeen[slot] = now;
+		this.rssi[slot] = Float.NaN;
+		this.manufacturerId[slot] = -1;
+		this.manufacturerLength[slot] = 0;
+		this.attachments[slot] = attachment;
+		this.used++;
+		return slot;
+	}
+
+	/**
+	 * Provides the slot of the given device, -1 if not tracked.
+	 */
+	private int slotOf(long address)
+	{
+		if (address < 0)
+			return -1;
+
+		long key = address | AdvertisementTable.OCCUPIED;
+		int slot = this.hash(address);
+		while (this.keys[slot] != 0)
+		{
+			if ((this.keys[slot] & ~AdvertisementTable.PRESENT) == key)
+				return slot;
+			slot = (slot + 1) & this.mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Provides the slot of the given device, -1 if not present, e.g., if only
+	 * a candidate.
+	 */
+	private int presentSlotOf(long address)
+	{
+		int slot = this.slotOf(address);
+		return ((slot >= 0)
+				&& ((this.keys[slot] & AdvertisementTable.PRESENT) != 0))
+						? slot : -1;
+	}
+
+	/**
+	 * Provides the home slot of the given address, mixing its bits as the
+	 * vendor prefix is shared by most devices of a fleet.
+	 */
+	private int hash(long address)
+	{
+		long h = address * 0x9E3779B97F4A7C15L;
+		return (int) (h >>> 32) & this.mask;
+	}
+
+	/**
+	 * Moves an entry between two slots.
+	 */
+	private void move(int from, int to)
+	{
+		this.keys[to] = this.keys[from];
+		this.firstSeen[to] = this.firstSeen[from];
+		this.lastSeen[to] = this.lastSeen[from];
+		this.rssi[to] = this.rssi[from];
+		this.manufacturerId[to] = this.manufacturerId[from];
+		this.manufacturerLength[to] = this.manufacturerLength[from];
+		this.attachments[to] = this.attachments[from];
+		System.arraycopy(this.manufacturerData,
+				from * AdvertisementTable.MAX_MANUFACTURER_DATA,
+				this.manufacturerData,
+				to * AdvertisementTable.MAX_MANUFACTURER_DATA,
+				AdvertisementTable.MAX_MANUFACTURER_DATA);
+	}
+}
@@ -0,0 +1,383 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import tinyb.BluetoothDevice;
+import tinyb.BluetoothException;
+import tinyb.BluetoothManager;
+import tinyb.BluetoothNotification;
+
+/**
+ * Runs the connectionless advertisement tracking mode: while active, it keeps
+ * a generic discovery request, updating an {@link AdvertisementTable} and
+ * notifying {@link AdvertisementListener}s of devices entering and leaving.
+ * Devices are never connected.
+ * <p>
+ * Sightings are timestamped by RSSI notifications, which BlueZ emits when it
+ * receives an advertisement: the last seen time and the smoothed RSSI follow
+ * the actual advertisements, not the BlueZ device cache. Devices only enter
+ * when sighted, or reported through
+ * {@link #report(String, short, int, byte[])}.
+ * <p>
+ * TinyB offers no signal for new devices, hence the adapter device lists are
+ * polled, every {@link #POLL_MILLIS}, to find them: every new listed device
+ * gets a candidate slot in the table, holding its RSSI subscription, so that
+ * the tracker state is bounded by the table capacity. Candidates not sighted
+ * within the absence timeout, e.g., stale entries of the BlueZ cache, are
+ * unsubscribed and freed silently, possibly to be listed again later; present
+ * devices not sighted within the absence timeout leave. The listing, which
+ * allocates the whole device list, is skipped while the table is full.
+ * <p>
+ * BlueZ only signals an RSSI differing enough from the previous one, hence
+ * a device advertising at a perfectly steady RSSI may go unseen: the absence
+ * timeout shall be generous. TinyB does not deliver the manufacturer specific
+ * data either, which can be fed by other sources through
+ * {@link #report(String, short, int, byte[])}.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class AdvertisementTracker
+{
+	// the period at which the adapter device lists are polled for new devices
+	static long POLL_MILLIS = 5000;
+
+	/**
+	 * Timestamps the sightings of a single device, reported by its RSSI
+	 * notifications.
+	 */
+	private class Sighting implements BluetoothNotification<Short>
+	{
+		// the table to update
+		final AdvertisementTable table;
+
+		// the subscribed device
+		final BluetoothDevice device;
+
+		// the packed device address
+		final long address;
+
+		Sighting(AdvertisementTable table, BluetoothDevice device,
+				long address)
+		{
+			this.table = table;
+			this.device = device;
+			this.address = address;
+		}
+
+		@Override
+		public void run(Short rssi)
+		{
+			if (this.table.seen(this.address, rssi.shortValue(),
+					System.currentTimeMillis()))
+				AdvertisementTracker.this.entered(
+						AdvertisementTable.formatAddress(this.address),
+						rssi.shortValue());
+		}
+	}
+
+	// the service providing access to the adapters
+	private final BluetoothService service;
+
+	// the executor running the polls
+	private final ScheduledExecutorService executor;
+
+	// the listeners to notify
+	private final CopyOnWriteArrayList<AdvertisementListener> listeners;
+
+	// the presence table, null when not tracking
+	private volatile AdvertisementTable table;
+
+	// the time after which unseen devices leave, in milliseconds
+	private long absenceTimeoutMillis;
+
+	// the discovery request kept while tracking
+	private DiscoveryRequest discovery;
+
+	// the periodic poll
+	private ScheduledFuture<?> poller;
+
+	// the absent devices, reused at every poll
+	private long[] absent;
+	private long[] absentLastSeen;
+
+	/**
+	 * Creates a new, inactive, tracker.
+	 * 
+	 * @param service
+	 *            The service providing access to the adapters.
+	 * @param executor
+	 *            The executor running the polls.
+	 */
+	AdvertisementTracker(BluetoothService service,
+			ScheduledExecutorService executor)
+	{
+		this.service = service;
+		this.executor = executor;
+		this.listeners = new CopyOnWriteArrayList<>();
+	}
+
+	/**
+	 * Starts tracking, replacing any previous table.
+	 * 
+	 * @param capacity
+	 *            The maximum number of tracked devices.
+	 * @param absenceTimeoutMillis
+	 *            The time after which devices not seen leave, in milliseconds.
+	 * @return The presence table.
+	 */
+	synchronized AdvertisementTable start(int capacity,
+			long absenceTimeoutMillis)
+	{
+		this.stop();
+
+		this.table = new AdvertisementTable(capacity);
+		this.absenceTimeoutMillis = absenceTimeoutMillis;
+		this.absent = new long[capacity];
+		this.absentLastSeen = new long[capacity];
+
+		this.discovery = this.service.requestDiscovery();
+		this.poller = this.executor.scheduleWithFixedDelay(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				AdvertisementTracker.this.poll();
+			}
+		}, 0, AdvertisementTracker.POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+		return this.table;
+	}
+
+	/**
+	 * Stops tracking, releasing the discovery request and the table.
+	 */
+	synchronized void stop()
+	{
+		if (this.poller != null)
+		{
+			this.poller.cancel(false);
+			this.poller = null;
+		}
+		if (this.discovery != null)
+		{
+			this.discovery.release();
+			this.discovery = null;
+		}
+		if (this.table != null)
+		{
+			for (Object sighting : this.table.clear())
+				this.unsubscribe((Sighting) sighting);
+			this.table = null;
+		}
+	}
+
+	/**
+	 * @return the presence table, null if not tracking
+	 */
+	AdvertisementTable getTable()
+	{
+		return this.table;
+	}
+
+	/**
+	 * Reports an advertisement received by a source other than the adapter
+	 * polling, e.g., a HCI monitor, possibly carrying manufacturer specific
+	 * data. Ignored if not tracking.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the advertising device.
+	 * @param rssi
+	 *            The RSSI in dBm, 0 if not available.
+	 * @param companyId
+	 *            The company id of the manufacturer specific data, -1 if none.
+	 * @param data
+	 *            The manufacturer specific data, null if none.
+	 */
+	void report(String deviceAddress, short rssi, int companyId, byte[] data)
+	{
+		AdvertisementTable current = this.table;
+		long address = AdvertisementTable.parseAddress(deviceAddress);
+		if ((current == null) || (address < 0))
+			return;
+
+		if (current.seen(address, rssi, System.currentTimeMillis()))
+			this.entered(AdvertisementTable.formatAddress(address), rssi);
+		if ((companyId >= 0) && (data != null))
+			current.setManufacturerData(address, companyId, data);
+	}
+
+	/**
+	 * Adds a listener notified of devices entering and leaving.
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	void addListener(AdvertisementListener listener)
+	{
+		this.listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Removes a listener.
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	void removeListener(AdvertisementListener listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+	/**
+	 * Expires the absent devices, then polls the devices listed by the
+	 * adapters, subscribing to the new ones.
+	 */
+	private synchronized void poll()
+	{
+		AdvertisementTable current = this.table;
+		if (current == null)
+			return;
+
+		long now = System.currentTimeMillis();
+
+		// expire the devices not seen for too long, freeing their slots
+		long deadline = now - this.absenceTimeoutMillis;
+		int count = current.collectAbsent(deadline, this.absent,
+				this.absentLastSeen);
+		for (int i = 0; i < count; i++)
+		{
+			Object sighting = current.getAttachment(this.absent[i]);
+			boolean present = current.isPresent(this.absent[i]);
+
+			// devices sighted in the meantime are kept
+			if (current.expire(this.absent[i], deadline))
+			{
+				if (sighting != null)
+					this.unsubscribe((Sighting) sighting);
+
+				// candidates never entered, they leave silently
+				if (present)
+					this.left(AdvertisementTable.formatAddress(this.absent[i]),
+							this.absentLastSeen[i]);
+			}
+		}
+
+		// new devices cannot be tracked, spare the listing
+		if (!current.hasRoom())
+			return;
+
+		try
+		{
+			BluetoothManager manager = this.service.getManager();
+			List<BluetoothDevice> devices = manager.getDevices();
+			for (BluetoothDevice device : devices)
+			{
+				long address = AdvertisementTable
+						.parseAddress(device.getAddress());
+				if ((address < 0) || (current.isTracked(address)))
+					continue;
+
+				// being listed is not a sighting: the device is a candidate
+				// until its first RSSI notification
+				Sighting sighting = new Sighting(current, device, address);
+				if (!current.reserve(address, sighting, now))
+					break;
+				this.subscribe(current, sighting);
+			}
+		}
+		catch (BluetoothException e)
+		{
+			// the adapters may be temporarily unavailable, try at next poll
+		}
+	}
+
+	/**
+	 * Enables the RSSI notifications of the given candidate, freeing its slot
+	 * if the subscription fails.
+	 */
+	private void subscribe(AdvertisementTable current, Sighting sighting)
+	{
+		try
+		{
+			sighting.device.enableRSSINotifications(sighting);
+		}
+		catch (BluetoothException e)
+		{
+			// the device may be gone already
+			current.expire(sighting.address, Long.MAX_VALUE);
+		}
+	}
+
+	/**
+	 * Disables the RSSI notifications of the given device.
+	 */
+	private void unsubscribe(Sighting sighting)
+	{
+		try
+		{
+			sighting.device.disableRSSINotifications();
+		}
+		catch (BluetoothException e)
+		{
+			// the device may be gone already
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the given device entered.
+	 */
+	private void entered(String deviceAddress, short rssi)
+	{
+		for (AdvertisementListener listener : this.listeners)
+		{
+			try
+			{
+				listener.entered(deviceAddress, rssi);
+			}
+			catch (RuntimeException e)
+			{
+				// a faulty listener shall not prevent delivery to the others
+			}
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the given device left.
+	 */
+	private void left(String deviceAddress, long lastSeen)
+	{
+		for (AdvertisementListener listener : this.listeners)
+		{
+			try
+			{
+				listener.left(deviceAddress, lastSeen);
+			}
+			catch (RuntimeException e)
+			{
+				// a faulty listener shall not prevent delivery to the others
+			}
+		}
+	}
+}
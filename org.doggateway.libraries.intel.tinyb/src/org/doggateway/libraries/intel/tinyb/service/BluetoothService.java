@@ -17,12 +17,20 @@
  */
 package org.doggateway.libraries.intel.tinyb.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Future;
 
+import tinyb.BluetoothAdapter;
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothGattCharacteristic;
 import tinyb.BluetoothGattService;
 import tinyb.BluetoothManager;
+import tinyb.BluetoothNotification;
 
 /**
  * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
@@ -52,10 +60,31 @@ public interface BluetoothService
 	 *            The amount of discovery attempts performed to find the given
 	 *            device, -1 for infinite attempts.
 	 * @return The device if it exists, or null.
+	 * @throws IllegalStateException
+	 *             If called from a service callback, which runs on the thread
+	 *             performing the attempts: use the asynchronous variant.
 	 */
 	public BluetoothDevice getDevice(String address, long timeoutBetweenTrials,
 			int nTrials);
 
+	/**
+	 * Looks for the {@link BluetoothDevice} having the given MAC address
+	 * without blocking the caller: attempts are retried on the service threads
+	 * according to the given policy, while discovery is requested for the
+	 * device.
+	 * 
+	 * @param address
+	 *            The MAC address of the device to get.
+	 * @param policy
+	 *            The policy defining how attempts are retried.
+	 * @param callback
+	 *            The callback notified on completion, may be null.
+	 * @return The future device, completing with null if the device cannot be
+	 *         found. Cancelling the future stops the lookup.
+	 */
+	public RetryFuture<BluetoothDevice> getDeviceAsync(String address,
+			RetryPolicy policy, RetryCallback<BluetoothDevice> callback);
+
 	/**
 	 * Provides the {@link BluetoothGattService} corresponding to the given UUID
 	 * 
@@ -71,10 +100,34 @@ public interface BluetoothService
 	 *            The amount of service "attachment" attempts performed, -1 for
 	 *            infinite attempts.
 	 * @return The required service or null.
+	 * @throws IllegalStateException
+	 *             If called from a service callback, which runs on the thread
+	 *             performing the attempts: use the asynchronous variant.
 	 */
 	public BluetoothGattService getService(BluetoothDevice device, String UUID,
 			long timeoutBetweenTrials, int nTrials);
 
+	/**
+	 * Provides the {@link BluetoothGattService} corresponding to the given UUID
+	 * without blocking the caller: attempts are retried on the service threads
+	 * according to the given policy, until the device services are resolved.
+	 * 
+	 * @param device
+	 *            The Bluetooth device from which the given service shall be
+	 *            retrieved;
+	 * @param UUID
+	 *            The UUID of the service to retrieve;
+	 * @param policy
+	 *            The policy defining how attempts are retried.
+	 * @param callback
+	 *            The callback notified on completion, may be null.
+	 * @return The future service, completing with null if the service is not
+	 *         available. Cancelling the future stops the lookup.
+	 */
+	public RetryFuture<BluetoothGattService> getServiceAsync(
+			BluetoothDevice device, String UUID, RetryPolicy policy,
+			RetryCallback<BluetoothGattService> callback);
+
 	/**
 	 * Provides all the services offered by the given device, in a map having
 	 * the service UUID as key.
@@ -88,10 +141,32 @@ public interface BluetoothService
 	 *            The amount of service "attachment" attempts performed, -1 for
 	 *            infinite attempts.
 	 * @return The map of available services.
+	 * @throws IllegalStateException
+	 *             If called from a service callback, which runs on the thread
+	 *             performing the attempts: use the asynchronous variant.
 	 */
 	public Map<String, BluetoothGattService> getAllServices(
 			BluetoothDevice device, long timeoutBetweenTrials, int nTrials);
 
+	/**
+	 * Provides all the services offered by the given device without blocking
+	 * the caller: attempts are retried on the service threads according to
+	 * the given policy, until the device services are resolved.
+	 * 
+	 * @param device
+	 *            The Bluetooth device hosting the services.
+	 * @param policy
+	 *            The policy defining how attempts are retried.
+	 * @param callback
+	 *            The callback notified on completion, may be null.
+	 * @return The future map of available services, having the service UUID
+	 *         as key, completing with null if services cannot be resolved.
+	 *         Cancelling the future stops the lookup.
+	 */
+	public RetryFuture<Map<String, BluetoothGattService>> getAllServicesAsync(
+			BluetoothDevice device, RetryPolicy policy,
+			RetryCallback<Map<String, BluetoothGattService>> callback);
+
 	/**
 	 * Get a characteristic from a given GATT service
 	 * 
@@ -113,4 +188,576 @@ public interface BluetoothService
 	 * @return The only instance of {@link BluetoothManager}
 	 */
 	public BluetoothManager getManager();
+
+	/**
+	 * Provides all the Bluetooth adapters (HCI controllers) available on the
+	 * system.
+	 * 
+	 * @return The list of available adapters.
+	 */
+	public List<BluetoothAdapter> getAdapters();
+
+	/**
+	 * Provides the number of connections currently handled by each adapter, in
+	 * a map having the adapter MAC address as key. Connections being set up
+	 * through {@link #connect(String, long, int)} are included in the count.
+	 * 
+	 * @return The adapter address -> connection count map.
+	 */
+	public Map<String, Integer> getConnectionCounts();
+
+	/**
+	 * Provides the adapter on which a new connection towards the device having
+	 * the given MAC address would be placed, i.e., the adapter to which the
+	 * device is pinned, if any, or the least loaded adapter.
+	 * 
+	 * @param address
+	 *            The MAC address of the device.
+	 * @return The selected adapter, or null if no adapter is available.
+	 */
+	public BluetoothAdapter getAdapter(String address);
+
+	/**
+	 * Pins the device having the given MAC address to the given adapter, all
+	 * subsequent connections towards the device will be placed on such
+	 * adapter, regardless of its load.
+	 * 
+	 * @param address
+	 *            The MAC address of the device to pin.
+	 * @param adapterAddress
+	 *            The MAC address of the adapter to which the device shall be
+	 *            pinned.
+	 */
+	public void pinDevice(String address, String adapterAddress);
+
+	/**
+	 * Removes the adapter pinning of the device having the given MAC address,
+	 * if any.
+	 * 
+	 * @param address
+	 *            The MAC address of the device to un-pin.
+	 */
+	public void unpinDevice(String address);
+
+	/**
+	 * Connects the device having the given MAC address, placing the connection
+	 * on the least loaded adapter (or on the adapter to which the device is
+	 * pinned). If the device is already connected, the connected device is
+	 * returned.
+	 * 
+	 * @param address
+	 *            The MAC address of the device to connect.
+	 * @param timeoutBetweenTrials
+	 *            The timeout in milliseconds to wait between device "discovery"
+	 *            attempts.
+	 * @param nTrials
+	 *            The amount of discovery attempts performed to find the given
+	 *            device, -1 for infinite attempts.
+	 * @return The connected device, or null if the device could not be found
+	 *         or connected.
+	 * @throws IllegalStateException
+	 *             If called from a service callback, which runs on the thread
+	 *             performing the attempts: hand the connection over to another
+	 *             thread.
+	 */
+	public BluetoothDevice connect(String address, long timeoutBetweenTrials,
+			int nTrials);
+
+	/**
+	 * Requests device discovery on all the available adapters. Discovery
+	 * requests issued by all clients are reference counted: discovery is
+	 * performed in duty-cycled windows as long as at least one request needs
+	 * it, and suspended while connections are being set up or the
+	 * notification rate is high. The returned request must be released as soon
+	 * as discovery is no longer needed.
+	 * 
+	 * @param addresses
+	 *            The MAC addresses of the devices to discover: discovery is
+	 *            needed by the request only until all of them have been seen.
+	 *            If none is given, the request needs discovery until released.
+	 * @return The discovery request.
+	 */
+	public DiscoveryRequest requestDiscovery(String... addresses);
+
+	/**
+	 * Configures the discovery duty cycle.
+	 * 
+	 * @param windowMillis
+	 *            The duration of a scan window, in milliseconds.
+	 * @param intervalMillis
+	 *            The time between the start of two subsequent scan windows, in
+	 *            milliseconds. Scanning is continuous if not greater than the
+	 *            window duration.
+	 * @param streamingThreshold
+	 *            The overall notification rate, in notifications per second,
+	 *            above which scanning is suspended, -1 to never suspend
+	 *            scanning due to streaming.
+	 */
+	public void configureDiscovery(long windowMillis, long intervalMillis,
+			int streamingThreshold);
+
+	/**
+	 * Subscribes the given listener to the value notifications of the given
+	 * characteristic. Notifications are natively enabled only once per
+	 * characteristic, and shared among all the listeners subscribed through
+	 * the service.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to subscribe to.
+	 * @param listener
+	 *            The listener to notify.
+	 */
+	public void enableValueNotifications(
+			BluetoothGattCharacteristic characteristic,
+			BluetoothNotification<byte[]> listener);
+
+	/**
+	 * Un-subscribes the given listener from the value notifications of the
+	 * given characteristic, notifications are natively disabled when the last
+	 * listener is removed.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to un-subscribe from.
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	public void disableValueNotifications(
+			BluetoothGattCharacteristic characteristic,
+			BluetoothNotification<byte[]> listener);
+
+	/**
+	 * Provides the latest value notified by the given characteristic, without
+	 * any GATT traffic and without locking. Values are cached only for the
+	 * characteristics subscribed through
+	 * {@link #enableValueNotifications(BluetoothGattCharacteristic, BluetoothNotification)}
+	 * ; readers can detect changes by comparing the snapshot sequence number
+	 * with the last one they observed.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the characteristic, as a string.
+	 * @return The latest value, or null if the characteristic has never
+	 *         notified any value while subscribed.
+	 */
+	public CachedValue getLastValue(String deviceAddress, String UUID);
+
+	/**
+	 * Provides the latest value notified by the given characteristic, see
+	 * {@link #getLastValue(String, String)}.
+	 * 
+	 * @param characteristic
+	 *            The characteristic.
+	 * @return The latest value, or null if the characteristic has never
+	 *         notified any value while subscribed.
+	 */
+	public CachedValue getLastValue(BluetoothGattCharacteristic characteristic);
+
+	/**
+	 * Starts capturing every raw notification handled by the service in a
+	 * memory-mapped ring file, having a fixed size and split in segments which
+	 * are overwritten oldest first. Captured notifications can be replayed
+	 * through a {@link NotificationJournalReader}. Any previous capture is
+	 * stopped.
+	 * 
+	 * @param journalFile
+	 *            The file in which notifications shall be captured, any
+	 *            previous content is overwritten.
+	 * @param segmentSize
+	 *            The size of a single segment, in bytes.
+	 * @param segmentCount
+	 *            The number of segments, at least 2.
+	 * @throws IOException
+	 *             If the journal file cannot be created.
+	 */
+	public void startCapture(File journalFile, int segmentSize,
+			int segmentCount) throws IOException;
+
+	/**
+	 * Stops capturing notifications, flushing the journal file to disk.
+	 */
+	public void stopCapture();
+
+	/**
+	 * Writes a large payload, e.g., a firmware image or a configuration table,
+	 * to the given characteristic. The payload is split in chunks fitting the
+	 * ATT MTU, without copying it, and chunks are written one at a time on a
+	 * dedicated thread, with an acknowledged checkpoint every window of
+	 * chunks. The write type cannot be chosen: BlueZ writes with response
+	 * whenever the characteristic supports it. Discovery is suspended during
+	 * the transfer.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to write.
+	 * @param data
+	 *            The payload to write, from its position to its limit; the
+	 *            buffer is not modified and shall not be modified during the
+	 *            transfer.
+	 * @param options
+	 *            The transfer options, null for the default ones.
+	 * @param listener
+	 *            The listener notified of the transfer progress, may be null.
+	 * @return The future number of written bytes; the future fails if a chunk
+	 *         cannot be written or the transfer is aborted, and cancelling it
+	 *         (with interruption) stops the transfer.
+	 */
+	public Future<Long> writeBulk(BluetoothGattCharacteristic characteristic,
+			ByteBuffer data, BulkWriteOptions options,
+			BulkWriteListener listener);
+
+	/**
+	 * Writes the content of the given file to the given characteristic, see
+	 * {@link #writeBulk(BluetoothGattCharacteristic, ByteBuffer, BulkWriteOptions, BulkWriteListener)}
+	 * . The file is memory-mapped, not read in memory.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to write.
+	 * @param file
+	 *            The file to write.
+	 * @param options
+	 *            The transfer options, null for the default ones.
+	 * @param listener
+	 *            The listener notified of the transfer progress, may be null.
+	 * @return The future number of written bytes.
+	 * @throws IOException
+	 *             If the file cannot be mapped.
+	 */
+	public Future<Long> writeBulk(BluetoothGattCharacteristic characteristic,
+			FileChannel file, BulkWriteOptions options,
+			BulkWriteListener listener) throws IOException;
+
+	/**
+	 * Sets the expected notification period of the given characteristic, used
+	 * to detect stalled notification streams. Should be called whenever the
+	 * sensor period is changed, e.g., after writing the SensorTag period
+	 * characteristic (expressed in units of 10ms); without a configured
+	 * period, the period is learned from the observed notifications.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 * @param periodMillis
+	 *            The expected period in milliseconds, 0 to learn it from the
+	 *            observed notifications.
+	 */
+	public void setExpectedPeriod(String deviceAddress, String UUID,
+			long periodMillis);
+
+	/**
+	 * Configures the detection of stalled notification streams.
+	 * 
+	 * @param missedPeriods
+	 *            The number of expected notification periods without any
+	 *            notification after which a stream is considered stalled.
+	 * @param autoRecover
+	 *            true to automatically re-enable the notifications of stalled
+	 *            streams, false to only notify the stall listeners.
+	 */
+	public void configureWatchdog(int missedPeriods, boolean autoRecover);
+
+	/**
+	 * Adds a listener notified when notification streams stall and resume.
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	public void addStallListener(StreamStallListener listener);
+
+	/**
+	 * Removes a stall listener.
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	public void removeStallListener(StreamStallListener listener);
+
+	/**
+	 * Starts keeping an in-memory time series of the values notified by the
+	 * given characteristic, decoded by the given decoder, replacing any series
+	 * previously tracked for it. Samples are recorded while the characteristic
+	 * is subscribed through
+	 * {@link #enableValueNotifications(BluetoothGattCharacteristic, BluetoothNotification)}.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 * @param decoder
+	 *            The decoder extracting sample values from notifications, see
+	 *            {@link SensorTagDecoders}.
+	 * @param capacity
+	 *            The maximum number of stored samples.
+	 * @param maxAgeMillis
+	 *            The maximum sample age in milliseconds, non-positive for no
+	 *            age limit.
+	 * @return The time series, to be queried by clients.
+	 */
+	public TimeSeries trackTimeSeries(String deviceAddress, String UUID,
+			PayloadDecoder decoder, int capacity, long maxAgeMillis);
+
+	/**
+	 * Provides the time series tracked for the given characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 * @return The time series, or null if the characteristic is not tracked.
+	 */
+	public TimeSeries getTimeSeries(String deviceAddress, String UUID);
+
+	/**
+	 * Stops tracking the time series of the given characteristic, releasing
+	 * the stored samples.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 */
+	public void untrackTimeSeries(String deviceAddress, String UUID);
+
+	/**
+	 * Sets the deadband of the given characteristic: notified values are
+	 * delivered to the listeners registered through
+	 * {@link #enableValueNotifications(BluetoothGattCharacteristic, BluetoothNotification)}
+	 * only when they differ enough from the last delivered value, or when the
+	 * deadband maximum silence elapses. Caches, time series and captures are
+	 * not affected.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 * @param deadband
+	 *            The deadband, null to deliver all notifications.
+	 */
+	public void setDeadband(String deviceAddress, String UUID,
+			Deadband deadband);
+
+	/**
+	 * Provides the number of notifications of the given characteristic not
+	 * delivered to listeners since its deadband has been set.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 * @return The number of suppressed notifications, 0 if no deadband is set.
+	 */
+	public long getSuppressedCount(String deviceAddress, String UUID);
+
+	/**
+	 * Starts the connectionless advertisement tracking mode, replacing any
+	 * previous tracking: devices seen by the adapters are tracked in a
+	 * compact presence table, without ever connecting to them, and discovery
+	 * is kept active until tracking is stopped. Devices are seen when BlueZ
+	 * reports a change of their RSSI, i.e., when it receives an advertisement
+	 * whose RSSI differs enough from the previous one.
+	 * 
+	 * @param capacity
+	 *            The maximum number of tracked devices, the table memory is
+	 *            allocated once for this capacity.
+	 * @param absenceTimeoutMillis
+	 *            The time after which devices not seen leave, in milliseconds;
+	 *            it shall span several advertising intervals, as not every
+	 *            advertisement is reported.
+	 * @return The presence table.
+	 */
+	public AdvertisementTable startAdvertisementTracking(int capacity,
+			long absenceTimeoutMillis);
+
+	/**
+	 * Stops the advertisement tracking mode, if active.
+	 */
+	public void stopAdvertisementTracking();
+
+	/**
+	 * @return the presence table of the advertisement tracking mode, null if
+	 *         not tracking
+	 */
+	public AdvertisementTable getAdvertisementTable();
+
+	/**
+	 * Reports an advertisement received outside of TinyB (e.g., by a HCI
+	 * monitor) to the advertisement tracking mode; TinyB does not provide the
+	 * manufacturer specific data of advertisements, which can only be tracked
+	 * this way. Ignored if not tracking.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the advertising device.
+	 * @param rssi
+	 *            The RSSI in dBm, 0 if not available.
+	 * @param companyId
+	 *            The company id of the manufacturer specific data, -1 if none.
+	 * @param manufacturerData
+	 *            The manufacturer specific data, null if none.
+	 */
+	public void reportAdvertisement(String deviceAddress, short rssi,
+			int companyId, byte[] manufacturerData);
+
+	/**
+	 * Adds a listener notified of tracked devices entering and leaving.
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	public void addAdvertisementListener(AdvertisementListener listener);
+
+	/**
+	 * Removes an advertisement listener.
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	public void removeAdvertisementListener(AdvertisementListener listener);
+
+	/**
+	 * Registers a new client of the fair GATT scheduler, typically one per
+	 * bundle: GATT operations issued through the returned client share the
+	 * radio fairly with the operations of the other clients, according to
+	 * their weights, rate limits and quotas.
+	 * 
+	 * @param name
+	 *            The client name, e.g., the bundle symbolic name.
+	 * @param weight
+	 *            The client weight, at least 1: when competing, clients get
+	 *            a share of the operations proportional to their weight.
+	 * @return The client, to be unregistered when no longer needed.
+	 */
+	public GattClient registerClient(String name, int weight);
+
+	/**
+	 * @return the registered clients of the fair GATT scheduler, with their
+	 *         usage statistics
+	 */
+	public List<GattClient> getClients();
+
+	/**
+	 * Starts publishing the samples of the exported characteristics (see
+	 * {@link #exportSamples(String, String, PayloadDecoder)}) in a
+	 * memory-mapped ring file, readable with no copy by local processes; the
+	 * file layout is documented in the bundle sources. Any previous export is
+	 * stopped.
+	 * 
+	 * @param exportFile
+	 *            The export file, overwritten.
+	 * @param slotCount
+	 *            The number of samples kept in the ring, rounded up to a power
+	 *            of 2.
+	 * @param maxValues
+	 *            The maximum number of values per sample.
+	 * @throws IOException
+	 *             If the file cannot be created or mapped.
+	 */
+	public void startExport(File exportFile, int slotCount, int maxValues)
+			throws IOException;
+
+	/**
+	 * Stops publishing samples, if exporting.
+	 */
+	public void stopExport();
+
+	/**
+	 * Selects a characteristic whose notified values shall be decoded and
+	 * exported, while its notifications are enabled.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The UUID of the notifying characteristic.
+	 * @param decoder
+	 *            The decoder extracting sample values from notifications,
+	 *            null to stop exporting the characteristic.
+	 */
+	public void exportSamples(String deviceAddress, String UUID,
+			PayloadDecoder decoder);
+
+	/**
+	 * Enables latency tracing of value notifications, resetting any previous
+	 * measurement: the time spent in every processing stage, in the delivery
+	 * to listeners and in total since the native callback fired is recorded
+	 * in histograms, and one notification every <code>sampleEvery</code> is
+	 * traced in full. Listeners implementing {@link TracedNotification}
+	 * receive the callback time regardless of tracing.
+	 * 
+	 * @param sampleEvery
+	 *            The sampling period of full traces, e.g., 100 to trace one
+	 *            notification every 100; non-positive to only keep histograms.
+	 * @param traceCapacity
+	 *            The number of full traces kept.
+	 */
+	public void enableTracing(int sampleEvery, int traceCapacity);
+
+	/**
+	 * Disables latency tracing, discarding histograms and traces.
+	 */
+	public void disableTracing();
+
+	/**
+	 * @return the latency histograms, indexed by name (one per processing
+	 *         stage, named after its index and class, e.g.,
+	 *         "1:LastValueCache", then "filter", "delivery" and "total"),
+	 *         empty if tracing is disabled
+	 */
+	public Map<String, LatencyHistogram> getLatencyHistograms();
+
+	/**
+	 * Writes the sampled full traces, oldest first, one per line.
+	 * 
+	 * @param out
+	 *            The destination, e.g., a {@link java.io.Writer} or a
+	 *            {@link StringBuilder}.
+	 * @throws IOException
+	 *             If the destination cannot be written.
+	 */
+	public void dumpTraces(Appendable out) throws IOException;
+
+	/**
+	 * Declares the sampling period required by the caller for the given
+	 * SensorTag-like sensor: the service writes the sensor period and
+	 * configuration characteristics (following the value characteristic in
+	 * the same service, e.g., f000aa03... and f000aa02... for f000aa01...) so
+	 * that the sensor samples at the shortest period among all active
+	 * demands, and turns the sensor off when no demand is active. Failed
+	 * writes are retried, and the demanded sampling is restored whenever the
+	 * device is connected through the service or the sensor notifications
+	 * are enabled. Demands do not subscribe to notifications, see
+	 * {@link #enableValueNotifications(BluetoothGattCharacteristic, BluetoothNotification)}.
+	 * 
+	 * @param valueCharacteristic
+	 *            The sensor value characteristic.
+	 * @param periodMillis
+	 *            The required sampling period in milliseconds, rounded to
+	 *            10ms and limited between 100ms and 2550ms.
+	 * @param enableConfiguration
+	 *            The configuration value enabling the sensor, e.g., {0xff,
+	 *            0x02} for the movement sensor with all axes enabled and an 8G
+	 *            accelerometer range; null for the default value (0x01). The
+	 *            values of the active demands are OR-ed byte by byte, hence
+	 *            they shall have the same length and agree on multi-bit
+	 *            fields such as the accelerometer range.
+	 * @return The demand, to be released when no longer needed.
+	 * @throws IllegalArgumentException
+	 *             If the sensor has no configuration and period
+	 *             characteristics, or if the configuration length differs
+	 *             from the one of the other active demands.
+	 */
+	public SamplingDemand requestSampling(
+			BluetoothGattCharacteristic valueCharacteristic, long periodMillis,
+			byte[] enableConfiguration);
+
+	/**
+	 * Provides the sampling period currently applied to the given sensor.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the sensor.
+	 * @param UUID
+	 *            The UUID of the sensor value characteristic.
+	 * @return The period in milliseconds, 0 if the sensor has been turned
+	 *         off, -1 if the sensor has never been configured or its state is
+	 *         unknown after a failed write.
+	 */
+	public long getSamplingPeriod(String deviceAddress, String UUID);
 }
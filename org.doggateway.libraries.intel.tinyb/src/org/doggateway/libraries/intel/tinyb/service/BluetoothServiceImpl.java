@@ -17,14 +17,29 @@
  */
 package org.doggateway.libraries.intel.tinyb.service;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import tinyb.BluetoothAdapter;
 import tinyb.BluetoothDevice;
 import tinyb.BluetoothGattCharacteristic;
 import tinyb.BluetoothGattService;
 import tinyb.BluetoothManager;
+import tinyb.BluetoothNotification;
 
 /**
  * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
@@ -38,6 +53,155 @@ public class BluetoothServiceImpl implements BluetoothService
 	// the BluetoothManager singleton
 	private static BluetoothManager theManager;
 
+	// the balancer spreading connections over the available adapters
+	private final AdapterLoadBalancer balancer = new AdapterLoadBalancer();
+
+	// the executor shared by all the periodic activities of the service
+	private final ScheduledExecutorService executor;
+
+	// the threads of the shared executor, on which no lookup may block
+	private final Set<Thread> executorThreads = Collections
+			.newSetFromMap(new ConcurrentHashMap<Thread, Boolean>());
+
+	// the executor running long lasting transfers
+	private final ExecutorService transferExecutor;
+
+	// the dispatcher mediating all value notifications
+	private final NotificationDispatcher dispatcher;
+
+	// the scheduler running discovery on behalf of all clients
+	private final DiscoveryScheduler discoveryScheduler;
+
+	// the engine retrying all the lookups
+	private final RetryEngine retryEngine;
+
+	// the cache of the latest notified values
+	private final LastValueCache lastValueCache;
+
+	// the journal capturing raw notifications, null if not capturing
+	private NotificationJournal journal;
+
+	// the timer wheel shared by all the liveness checks
+	private final HashedWheelTimer timer;
+
+	// the watchdog detecting stalled notification streams
+	private final NotificationWatchdog watchdog;
+
+	// the store of the tracked time series
+	private final TimeSeriesStore timeSeriesStore;
+
+	// the filter sparing listeners the unchanged values
+	private final ReportByExceptionFilter reportByException;
+
+	// the connectionless advertisement tracker
+	private final AdvertisementTracker advertisementTracker;
+
+	// the scheduler sharing GATT operations fairly among clients
+	private final GattScheduler gattScheduler;
+
+	// the GATT client issuing the bulk write chunks and checkpoints
+	private final GattClient bulkWriteClient;
+
+	// the shared-memory export of decoded samples
+	private final SampleExport sampleExport;
+
+	// the controller of demand-driven sensor sampling
+	private final SamplingController samplingController;
+
+	/**
+	 * Creates the service, with no active notification subscriptions and no
+	 * pending discovery requests.
+	 */
+	public BluetoothServiceImpl()
+	{
+		// use daemon threads, not to prevent the JVM from exiting when the
+		// service is used outside of an OSGi framework
+		final ThreadFactory threadFactory = new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(Runnable r)
+			{
+				Thread thread = new Thread(r, "bluetooth-service");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		this.executor = Executors.newScheduledThreadPool(1,
+				new ThreadFactory()
+				{
+					@Override
+					public Thread newThread(Runnable r)
+					{
+						// remember the thread, blocking lookups issued by
+						// callbacks running on it would never complete
+						Thread thread = threadFactory.newThread(r);
+						BluetoothServiceImpl.this.executorThreads.add(thread);
+						return thread;
+					}
+				});
+		this.transferExecutor = Executors.newCachedThreadPool(threadFactory);
+
+		this.dispatcher = new NotificationDispatcher();
+		this.discoveryScheduler = new DiscoveryScheduler(this, this.executor);
+		this.retryEngine = new RetryEngine(this.executor);
+
+		// GATT operations may block, keep them off the scheduled executor
+		this.gattScheduler = new GattScheduler(this.transferExecutor);
+
+		// the service own transfers share the radio with the other clients
+		this.bulkWriteClient = this.gattScheduler.register("bulk-writer", 1);
+
+		// the discovery scheduler tracks the overall notification rate
+		this.dispatcher.addStage(this.discoveryScheduler);
+
+		// the cache sees every notification
+		this.lastValueCache = new LastValueCache();
+		this.dispatcher.addStage(this.lastValueCache);
+
+		// a single wheel (100ms ticks, ~50s per round) for all the streams
+		this.timer = new HashedWheelTimer(100, 512, this.executor);
+		this.watchdog = new NotificationWatchdog(this.timer,
+				this.gattScheduler.register("stream-recovery", 1));
+		this.dispatcher.addStage(this.watchdog);
+
+		this.timeSeriesStore = new TimeSeriesStore();
+		this.dispatcher.addStage(this.timeSeriesStore);
+
+		// filtering only affects listeners, all the stages (including
+		// captures added later) still see every notification
+		this.reportByException = new ReportByExceptionFilter();
+		this.dispatcher.setDeliveryFilter(this.reportByException);
+
+		this.advertisementTracker = new AdvertisementTracker(this,
+				this.executor);
+
+		this.sampleExport = new SampleExport();
+		this.dispatcher.addStage(this.sampleExport);
+
+		// sensor configuration writes share the radio with the other clients
+		this.samplingController = new SamplingController(
+				this.gattScheduler.register("sampling-controller", 1),
+				this.watchdog, this.retryEngine);
+	}
+
+	/**
+	 * Called by the Declarative Services runtime when the service is
+	 * deactivated: stops discovery, natively disables all notifications,
+	 * cancels pending transfers and releases the service threads.
+	 */
+	public void deactivate()
+	{
+		this.stopCapture();
+		this.stopExport();
+		this.advertisementTracker.stop();
+		this.discoveryScheduler.shutdown();
+		this.dispatcher.closeAll();
+		this.gattScheduler.shutdown();
+		this.timer.stop();
+		this.executor.shutdownNow();
+		this.transferExecutor.shutdownNow();
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -82,62 +246,476 @@ public class BluetoothServiceImpl implements BluetoothService
 	public BluetoothDevice getDevice(String address, long timeoutBetweenTrials,
 			int nTrials)
 	{
-		// get the Bluetooth manager
-		BluetoothManager manager = this.getManager();
+		return this.await(this.getDeviceAsync(address,
+				RetryPolicy.fixed(timeoutBetweenTrials, nTrials), null));
+	}
 
-		// the Bluetooth device to get
-		BluetoothDevice sensor = null;
+	@Override
+	public RetryFuture<BluetoothDevice> getDeviceAsync(String address,
+			RetryPolicy policy, RetryCallback<BluetoothDevice> callback)
+	{
+		return this.findDeviceAsync(address, false, policy, callback);
+	}
 
-		// the number of attempted trials
-		int nTrialsDone = 0;
+	/**
+	 * Looks for the device having the given address, retrying according to
+	 * the given policy.
+	 * 
+	 * @param address
+	 *            The MAC address of the device to find.
+	 * @param forConnection
+	 *            true if the device is looked up to be connected, in which
+	 *            case a pinned device is only found on its adapter.
+	 * @param policy
+	 *            The retry policy.
+	 * @param callback
+	 *            The callback notified of the lookup result, may be null.
+	 * @return The future lookup result.
+	 */
+	private RetryFuture<BluetoothDevice> findDeviceAsync(final String address,
+			final boolean forConnection, RetryPolicy policy,
+			final RetryCallback<BluetoothDevice> callback)
+	{
+		// get the Bluetooth manager
+		final BluetoothManager manager = this.getManager();
 
-		// the device found flag
-		boolean found = false;
+		// ask for discovery while the device is missing
+		final DiscoveryRequest discovery = this.discoveryScheduler
+				.request(address);
 
-		// look for the device up to the given amount of times
-		while ((!found) && ((nTrials < 0)
-				|| ((nTrials > 0) && (nTrialsDone < nTrials))))
+		return this.retryEngine.submit(new RetryEngine.Lookup<BluetoothDevice>()
 		{
-			// increment the number of attempted trials
-			if (nTrials > 0)
-				nTrialsDone++;
+			// the Bluetooth device to get
+			private BluetoothDevice sensor;
 
-			// get the available devices from the bluetooth manager
-			List<BluetoothDevice> list = manager.getDevices();
+			@Override
+			public boolean attempt()
+			{
+				// look for the device among the ones seen by all adapters
+				this.sensor = BluetoothServiceImpl.this.findDevice(manager,
+						address, forConnection);
+				return (this.sensor != null);
+			}
 
-			// iterate over all devices listed in the manager
-			for (BluetoothDevice device : list)
+			@Override
+			public BluetoothDevice getResult()
 			{
-				// if the device address matches, store it and stop searching
-				if (device.getAddress().equals(address))
-				{
-					// store the device
-					sensor = device;
+				return this.sensor;
+			}
+		}, policy, new RetryCallback<BluetoothDevice>()
+		{
+			@Override
+			public void completed(BluetoothDevice result)
+			{
+				// discovery is no longer needed for this device
+				discovery.release();
 
-					// interrupt
-					found = true;
-				}
+				if (callback != null)
+					callback.completed(result);
 			}
+		});
+	}
+
+	@Override
+	public List<BluetoothAdapter> getAdapters()
+	{
+		return this.getManager().getAdapters();
+	}
+
+	@Override
+	public Map<String, Integer> getConnectionCounts()
+	{
+		return this.balancer.getConnectionCounts(this.getAdapters());
+	}
 
-			// avoid sleeping if found
-			if (!found)
+	@Override
+	public BluetoothAdapter getAdapter(String address)
+	{
+		return this.balancer.select(address, this.getAdapters());
+	}
+
+	@Override
+	public void pinDevice(String address, String adapterAddress)
+	{
+		this.balancer.pin(address, adapterAddress);
+	}
+
+	@Override
+	public void unpinDevice(String address)
+	{
+		this.balancer.unpin(address);
+	}
+
+	@Override
+	public BluetoothDevice connect(String address, long timeoutBetweenTrials,
+			int nTrials)
+	{
+		// look for the device, preferring the already connected instance;
+		// a pinned device must be seen by its adapter
+		BluetoothDevice device = this.await(this.findDeviceAsync(address, true,
+				RetryPolicy.fixed(timeoutBetweenTrials, nTrials), null));
+
+		// nothing to do if the device cannot be found or is already connected
+		if ((device == null) || (device.getConnected()))
+			return device;
+
+		// the instances of the device, one per adapter seeing it
+		Map<String, BluetoothDevice> instances = new HashMap<>();
+		List<BluetoothAdapter> candidates = new ArrayList<>();
+		for (BluetoothDevice instance : this.getManager().getDevices())
+		{
+			if (instance.getAddress().equals(address))
 			{
-				try
-				{
-					// wait before a new attempt, if a not valid time is
-					// specified, use default one.
-					Thread.sleep(timeoutBetweenTrials < 0 ? timeoutBetweenTrials
-							: BluetoothServiceImpl.RETRY_AFTER_MILLIS);
-				}
-				catch (InterruptedException e)
-				{
-					// do nothing and exit
-					found = true;
-				}
+				BluetoothAdapter adapter = instance.getAdapter();
+				instances.put(adapter.getAddress(), instance);
+				candidates.add(adapter);
 			}
 		}
-		// return the found device, or null
-		return sensor;
+
+		// select the least loaded adapter and account for the connection
+		// being set up in a single step, to avoid placing concurrent
+		// connections on the same adapter
+		BluetoothAdapter adapter = this.balancer.reserve(address, candidates);
+		if (adapter == null)
+			return null;
+		String adapterAddress = adapter.getAddress();
+		device = instances.get(adapterAddress);
+
+		// scanning slows down connection setup on a shared radio
+		this.discoveryScheduler.suspend();
+		try
+		{
+			// connect the device
+			if (!device.connect())
+				device = null;
+		}
+		finally
+		{
+			this.discoveryScheduler.resume();
+			this.balancer.connectionEnded(adapterAddress);
+		}
+
+		// sensors are off after a reconnection, restore the demanded sampling
+		if (device != null)
+			this.samplingController.reapply(address);
+
+		return device;
+	}
+
+	@Override
+	public DiscoveryRequest requestDiscovery(String... addresses)
+	{
+		return this.discoveryScheduler.request(addresses);
+	}
+
+	@Override
+	public void configureDiscovery(long windowMillis, long intervalMillis,
+			int streamingThreshold)
+	{
+		this.discoveryScheduler.configure(windowMillis, intervalMillis,
+				streamingThreshold);
+	}
+
+	@Override
+	public void enableValueNotifications(
+			BluetoothGattCharacteristic characteristic,
+			BluetoothNotification<byte[]> listener)
+	{
+		this.dispatcher.subscribe(characteristic, listener);
+
+		// the device may have reconnected meanwhile, restore the demanded
+		// sampling, if any
+		this.samplingController.reapply(
+				characteristic.getService().getDevice().getAddress(),
+				characteristic.getUUID());
+	}
+
+	@Override
+	public void disableValueNotifications(
+			BluetoothGattCharacteristic characteristic,
+			BluetoothNotification<byte[]> listener)
+	{
+		this.dispatcher.unsubscribe(characteristic, listener);
+	}
+
+	@Override
+	public CachedValue getLastValue(String deviceAddress, String UUID)
+	{
+		return this.lastValueCache.get(deviceAddress, UUID);
+	}
+
+	@Override
+	public CachedValue getLastValue(BluetoothGattCharacteristic characteristic)
+	{
+		return this.getLastValue(
+				characteristic.getService().getDevice().getAddress(),
+				characteristic.getUUID());
+	}
+
+	@Override
+	public synchronized void startCapture(File journalFile, int segmentSize,
+			int segmentCount) throws IOException
+	{
+		// only one capture at time
+		this.stopCapture();
+
+		this.journal = new NotificationJournal(journalFile, segmentSize,
+				segmentCount);
+		this.dispatcher.addStage(this.journal);
+	}
+
+	@Override
+	public synchronized void stopCapture()
+	{
+		if (this.journal != null)
+		{
+			this.dispatcher.removeStage(this.journal);
+			this.journal.close();
+			this.journal = null;
+		}
+	}
+
+	@Override
+	public Future<Long> writeBulk(BluetoothGattCharacteristic characteristic,
+			ByteBuffer data, BulkWriteOptions options,
+			BulkWriteListener listener)
+	{
+		return this.transferExecutor.submit(new BulkWriter(characteristic,
+				data, (options != null) ? options : new BulkWriteOptions(),
+				listener, this.discoveryScheduler, this.bulkWriteClient));
+	}
+
+	@Override
+	public Future<Long> writeBulk(BluetoothGattCharacteristic characteristic,
+			FileChannel file, BulkWriteOptions options,
+			BulkWriteListener listener) throws IOException
+	{
+		// map the file, chunks are read directly from the page cache
+		return this.writeBulk(characteristic,
+				file.map(FileChannel.MapMode.READ_ONLY, 0, file.size()),
+				options, listener);
+	}
+
+	@Override
+	public void setExpectedPeriod(String deviceAddress, String UUID,
+			long periodMillis)
+	{
+		this.watchdog.setExpectedPeriod(deviceAddress, UUID, periodMillis);
+	}
+
+	@Override
+	public void configureWatchdog(int missedPeriods, boolean autoRecover)
+	{
+		this.watchdog.configure(missedPeriods, autoRecover);
+	}
+
+	@Override
+	public void addStallListener(StreamStallListener listener)
+	{
+		this.watchdog.addListener(listener);
+	}
+
+	@Override
+	public void removeStallListener(StreamStallListener listener)
+	{
+		this.watchdog.removeListener(listener);
+	}
+
+	@Override
+	public TimeSeries trackTimeSeries(String deviceAddress, String UUID,
+			PayloadDecoder decoder, int capacity, long maxAgeMillis)
+	{
+		return this.timeSeriesStore.track(deviceAddress, UUID, decoder,
+				capacity, maxAgeMillis);
+	}
+
+	@Override
+	public TimeSeries getTimeSeries(String deviceAddress, String UUID)
+	{
+		return this.timeSeriesStore.get(deviceAddress, UUID);
+	}
+
+	@Override
+	public void untrackTimeSeries(String deviceAddress, String UUID)
+	{
+		this.timeSeriesStore.untrack(deviceAddress, UUID);
+	}
+
+	@Override
+	public void setDeadband(String deviceAddress, String UUID,
+			Deadband deadband)
+	{
+		this.reportByException.setDeadband(deviceAddress, UUID, deadband);
+	}
+
+	@Override
+	public long getSuppressedCount(String deviceAddress, String UUID)
+	{
+		return this.reportByException.getSuppressed(deviceAddress, UUID);
+	}
+
+	@Override
+	public AdvertisementTable startAdvertisementTracking(int capacity,
+			long absenceTimeoutMillis)
+	{
+		return this.advertisementTracker.start(capacity, absenceTimeoutMillis);
+	}
+
+	@Override
+	public void stopAdvertisementTracking()
+	{
+		this.advertisementTracker.stop();
+	}
+
+	@Override
+	public AdvertisementTable getAdvertisementTable()
+	{
+		return this.advertisementTracker.getTable();
+	}
+
+	@Override
+	public void reportAdvertisement(String deviceAddress, short rssi,
+			int companyId, byte[] manufacturerData)
+	{
+		this.advertisementTracker.report(deviceAddress, rssi, companyId,
+				manufacturerData);
+	}
+
+	@Override
+	public void addAdvertisementListener(AdvertisementListener listener)
+	{
+		this.advertisementTracker.addListener(listener);
+	}
+
+	@Override
+	public void removeAdvertisementListener(AdvertisementListener listener)
+	{
+		this.advertisementTracker.removeListener(listener);
+	}
+
+	@Override
+	public GattClient registerClient(String name, int weight)
+	{
+		return this.gattScheduler.register(name, weight);
+	}
+
+	@Override
+	public List<GattClient> getClients()
+	{
+		return this.gattScheduler.getClients();
+	}
+
+	@Override
+	public void startExport(File exportFile, int slotCount, int maxValues)
+			throws IOException
+	{
+		this.sampleExport.open(exportFile, slotCount, maxValues);
+	}
+
+	@Override
+	public void stopExport()
+	{
+		this.sampleExport.close();
+	}
+
+	@Override
+	public void exportSamples(String deviceAddress, String UUID,
+			PayloadDecoder decoder)
+	{
+		this.sampleExport.export(deviceAddress, UUID, decoder);
+	}
+
+	@Override
+	public void enableTracing(int sampleEvery, int traceCapacity)
+	{
+		this.dispatcher.setTracer(new LatencyTracer(sampleEvery, traceCapacity));
+	}
+
+	@Override
+	public void disableTracing()
+	{
+		this.dispatcher.setTracer(null);
+	}
+
+	@Override
+	public Map<String, LatencyHistogram> getLatencyHistograms()
+	{
+		LatencyTracer tracer = this.dispatcher.getTracer();
+		return (tracer != null) ? tracer.getHistograms()
+				: new HashMap<String, LatencyHistogram>();
+	}
+
+	@Override
+	public void dumpTraces(Appendable out) throws IOException
+	{
+		LatencyTracer tracer = this.dispatcher.getTracer();
+		if (tracer != null)
+			tracer.dump(out);
+	}
+
+	@Override
+	public SamplingDemand requestSampling(
+			BluetoothGattCharacteristic valueCharacteristic, long periodMillis,
+			byte[] enableConfiguration)
+	{
+		return this.samplingController.request(valueCharacteristic,
+				periodMillis, enableConfiguration);
+	}
+
+	@Override
+	public long getSamplingPeriod(String deviceAddress, String UUID)
+	{
+		return this.samplingController.getAppliedPeriod(deviceAddress, UUID);
+	}
+
+	/**
+	 * Looks for the device having the given address among the devices seen by
+	 * all the adapters. As the same device can be seen by more than one
+	 * adapter, the instance currently connected is preferred, followed by any
+	 * other instance; when looking up a device to connect, a pinned device is
+	 * only found on its adapter.
+	 * 
+	 * @param manager
+	 *            The Bluetooth manager.
+	 * @param address
+	 *            The MAC address of the device to find.
+	 * @param forConnection
+	 *            true if the device is looked up to be connected.
+	 * @return The device, or null if no adapter currently sees it.
+	 */
+	private BluetoothDevice findDevice(BluetoothManager manager,
+			String address, boolean forConnection)
+	{
+		// the adapter to which the device is pinned, only relevant for
+		// connections
+		String pinnedAddress = forConnection
+				? this.balancer.getPinnedAdapter(address) : null;
+
+		// the device instance seen by any adapter
+		BluetoothDevice anyDevice = null;
+
+		// iterate over all devices listed in the manager
+		for (BluetoothDevice device : manager.getDevices())
+		{
+			// skip devices with a different address
+			if (!device.getAddress().equals(address))
+				continue;
+
+			// an already connected instance always wins
+			if (device.getConnected())
+				return device;
+
+			// a pinned device is only found on its adapter
+			if ((pinnedAddress != null) && (!pinnedAddress
+					.equals(device.getAdapter().getAddress())))
+				continue;
+
+			// store the first instance found
+			if (anyDevice == null)
+				anyDevice = device;
+		}
+
+		return anyDevice;
 	}
 
 	/*
@@ -175,122 +753,153 @@ public class BluetoothServiceImpl implements BluetoothService
 	public BluetoothGattService getService(BluetoothDevice device, String UUID,
 			long timeoutBetweenTrials, int nTrials)
 	{
-		// the service to get
-		BluetoothGattService serv = null;
-
-		// the list of services offered by the devices
-		List<BluetoothGattService> bluetoothServices = null;
-
-		int nTrialsDone = 0;
-		boolean found = false;
-
-		// look for the device up to the given amount of times
-		while (((!found) && (nTrials < 0))
-				|| ((nTrials > 0) && (nTrialsDone < nTrials)))
-		{
-			// increment the number of attempted trials
-			if (nTrials > 0)
-				nTrialsDone++;
-
-			// can be empty
-			bluetoothServices = device.getServices();
-
-			// if not empty, then all services have been considered
-			// TODO: check if it is true
-			if ((bluetoothServices != null) && (!bluetoothServices.isEmpty()))
-			{
-				// set the found flag
-				found = true;
+		return this.await(this.getServiceAsync(device, UUID,
+				RetryPolicy.fixed(timeoutBetweenTrials, nTrials), null));
+	}
 
-				// search for the given UUID
-				for (BluetoothGattService service : bluetoothServices)
+	@Override
+	public RetryFuture<BluetoothGattService> getServiceAsync(
+			final BluetoothDevice device, final String UUID,
+			RetryPolicy policy, RetryCallback<BluetoothGattService> callback)
+	{
+		return this.retryEngine.submit(
+				new RetryEngine.Lookup<BluetoothGattService>()
 				{
-					// check if the given UUID matches with the UUID of the
-					// current
-					// service
-					if (service.getUUID().equals(UUID))
-					{
-						// store the found service
-						serv = service;
+					// the service to get
+					private BluetoothGattService serv;
 
+					@Override
+					public boolean attempt()
+					{
+						// can be empty
+						List<BluetoothGattService> bluetoothServices = device
+								.getServices();
+
+						// if not empty, then all services have been
+						// considered
+						// TODO: check if it is true
+						if ((bluetoothServices == null)
+								|| (bluetoothServices.isEmpty()))
+							return false;
+
+						// search for the given UUID
+						for (BluetoothGattService service : bluetoothServices)
+						{
+							// check if the given UUID matches with the UUID of
+							// the current service
+							if (service.getUUID().equals(UUID))
+							{
+								// store the found service
+								this.serv = service;
+								break;
+							}
+						}
+
+						// services have been resolved, even if the required
+						// one is not offered by the device
+						return true;
 					}
-				}
-			}
-			else
-			{
-				try
-				{
-					// wait before a new attempt, if a not valid time is
-					// specified, use default one.
-					Thread.sleep(timeoutBetweenTrials < 0 ? timeoutBetweenTrials
-							: BluetoothServiceImpl.RETRY_AFTER_MILLIS);
-				}
-				catch (InterruptedException e)
-				{
-					// do nothing and exit
-					found = true;
-				}
-			}
-		}
 
-		// return the found service or null
-		return serv;
+					@Override
+					public BluetoothGattService getResult()
+					{
+						return this.serv;
+					}
+				}, policy, callback);
 	}
 
 	@Override
 	public Map<String, BluetoothGattService> getAllServices(
 			BluetoothDevice device, long timeoutBetweenTrials, int nTrials)
 	{
-		// the map of services to return
-		HashMap<String, BluetoothGattService> servicesMap = new HashMap<>();
-
-		// the list of services offered by the devices
-		List<BluetoothGattService> bluetoothServices = null;
+		Map<String, BluetoothGattService> servicesMap = this
+				.await(this.getAllServicesAsync(device,
+						RetryPolicy.fixed(timeoutBetweenTrials, nTrials),
+						null));
+
+		// always provide a map, possibly empty
+		return (servicesMap != null) ? servicesMap
+				: new HashMap<String, BluetoothGattService>();
+	}
 
-		int nTrialsDone = 0;
-		boolean found = true;
+	@Override
+	public RetryFuture<Map<String, BluetoothGattService>> getAllServicesAsync(
+			final BluetoothDevice device, RetryPolicy policy,
+			RetryCallback<Map<String, BluetoothGattService>> callback)
+	{
+		return this.retryEngine.submit(
+				new RetryEngine.Lookup<Map<String, BluetoothGattService>>()
+				{
+					// the map of services to return
+					private HashMap<String, BluetoothGattService> servicesMap = new HashMap<>();
 
-		// look for the device up to the given amount of times
-		while ((!found) && ((nTrials < 0)
-				|| ((nTrials > 0) && (nTrialsDone < nTrials))))
-		{
-			// increment the number of attempted trials
-			if (nTrials > 0)
-				nTrialsDone++;
+					@Override
+					public boolean attempt()
+					{
+						// can be empty
+						List<BluetoothGattService> bluetoothServices = device
+								.getServices();
+
+						// if not empty, then all services have been
+						// considered
+						// TODO: check if it is true
+						if ((bluetoothServices == null)
+								|| (bluetoothServices.isEmpty()))
+							return false;
+
+						// fill the map to return
+						for (BluetoothGattService bService : bluetoothServices)
+						{
+							this.servicesMap.put(bService.getUUID(), bService);
+						}
+						return true;
+					}
 
-			// can be empty
-			bluetoothServices = device.getServices();
+					@Override
+					public Map<String, BluetoothGattService> getResult()
+					{
+						return this.servicesMap;
+					}
+				}, policy, callback);
+	}
 
-			// if not empty, then all services have been considered
-			// TODO: check if it is true
-			if ((bluetoothServices != null) && (!bluetoothServices.isEmpty()))
-			{
-				// found services
-				found = true;
+	/**
+	 * Waits for the given lookup to complete. If the calling thread is
+	 * interrupted, the lookup is cancelled and the interruption status is
+	 * preserved. Waiting is refused on the service thread, which is the only
+	 * one able to complete the lookup.
+	 * 
+	 * @param future
+	 *            The lookup to wait for.
+	 * @return The lookup result, or null if the lookup failed or has been
+	 *         interrupted.
+	 * @throws IllegalStateException
+	 *             If called from the service thread, e.g., by a service
+	 *             callback.
+	 */
+	private <T> T await(RetryFuture<T> future)
+	{
+		// the attempts run on the shared executor, waiting on it would
+		// deadlock: callbacks must use the asynchronous variants
+		if (!future.isDone()
+				&& this.executorThreads.contains(Thread.currentThread()))
+		{
+			future.cancel(false);
+			throw new IllegalStateException(
+					"Blocking lookups cannot be issued from the service thread, use the asynchronous variants");
+		}
 
-				// fill the map to return
-				for (BluetoothGattService bService : bluetoothServices)
-				{
-					servicesMap.put(bService.getUUID(), bService);
-				}
-			}
-			else
-			{
-				try
-				{
-					// wait before a new attempt, if a not valid time is
-					// specified, use default one.
-					Thread.sleep(timeoutBetweenTrials < 0 ? timeoutBetweenTrials
-							: BluetoothServiceImpl.RETRY_AFTER_MILLIS);
-				}
-				catch (InterruptedException e)
-				{
-					// do nothing and exit
-					found = true;
-				}
-			}
+		try
+		{
+			return future.get();
+		}
+		catch (InterruptedException e)
+		{
+			// stop retrying and let the caller know about the interruption
+			future.cancel(false);
+			Thread.currentThread().interrupt();
+			return null;
 		}
-		return servicesMap;
 	}
 
-}
+}
\ No newline at end of file
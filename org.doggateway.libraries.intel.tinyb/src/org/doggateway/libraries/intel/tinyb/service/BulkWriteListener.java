@@ -0,0 +1,60 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Receives progress information about a bulk write performed by the
+ * {@link BluetoothService}. Methods are called on the thread performing the
+ * transfer, and slow implementations directly slow down the transfer.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public interface BulkWriteListener
+{
+	/**
+	 * Called at every checkpoint, after the checkpoint characteristic (if any)
+	 * has been successfully read. Implementations may perform
+	 * protocol-specific acknowledgements, e.g., reading a status
+	 * characteristic, and stop the transfer if needed.
+	 * 
+	 * @param bytesWritten
+	 *            The number of bytes written so far.
+	 * @param totalBytes
+	 *            The total number of bytes to write.
+	 * @param bytesPerSecond
+	 *            The average throughput since the transfer started.
+	 * @return true to continue the transfer, false to abort it.
+	 */
+	public boolean checkpoint(long bytesWritten, long totalBytes,
+			long bytesPerSecond);
+
+	/**
+	 * Called once, when the transfer ends.
+	 * 
+	 * @param success
+	 *            true if all bytes have been written, false if the transfer
+	 *            failed, has been aborted or cancelled.
+	 * @param bytesWritten
+	 *            The number of bytes written.
+	 * @param elapsedMillis
+	 *            The transfer duration, in milliseconds.
+	 */
+	public void completed(boolean success, long bytesWritten,
+			long elapsedMillis);
+}
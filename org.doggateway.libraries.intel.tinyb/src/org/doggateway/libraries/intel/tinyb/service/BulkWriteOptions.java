@@ -0,0 +1,124 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import tinyb.BluetoothGattCharacteristic;
+
+/**
+ * The options of a bulk write performed through
+ * {@link BluetoothService#writeBulk(BluetoothGattCharacteristic, java.nio.ByteBuffer, BulkWriteOptions, BulkWriteListener)}
+ * .
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public class BulkWriteOptions
+{
+	// default chunk size, fitting the default ATT MTU (23 bytes) minus the
+	// write header (3 bytes)
+	public static int DEFAULT_CHUNK_SIZE = 20;
+
+	// default number of chunks written between two checkpoints
+	public static int DEFAULT_WINDOW = 16;
+
+	// the size of a single chunk, in bytes
+	private int chunkSize;
+
+	// the number of chunks written between two checkpoints
+	private int window;
+
+	// the characteristic read at every checkpoint, may be null
+	private BluetoothGattCharacteristic checkpointCharacteristic;
+
+	/**
+	 * Creates a new set of options, having the default chunk size and window
+	 * and no checkpoint characteristic.
+	 */
+	public BulkWriteOptions()
+	{
+		this.chunkSize = BulkWriteOptions.DEFAULT_CHUNK_SIZE;
+		this.window = BulkWriteOptions.DEFAULT_WINDOW;
+	}
+
+	/**
+	 * @return the size of a single chunk, in bytes
+	 */
+	public int getChunkSize()
+	{
+		return this.chunkSize;
+	}
+
+	/**
+	 * Sets the size of a single chunk, it shall not exceed the negotiated ATT
+	 * MTU minus 3 bytes.
+	 * 
+	 * @param chunkSize
+	 *            the size of a single chunk, in bytes
+	 */
+	public void setChunkSize(int chunkSize)
+	{
+		this.chunkSize = chunkSize;
+	}
+
+	/**
+	 * @return the number of chunks written between two checkpoints
+	 */
+	public int getWindow()
+	{
+		return this.window;
+	}
+
+	/**
+	 * Sets the maximum number of chunks written without any acknowledged
+	 * checkpoint, progress is reported at every checkpoint. There is no option
+	 * selecting write without response, as TinyB leaves the write type to
+	 * BlueZ, which only uses it for characteristics not supporting write
+	 * requests.
+	 * 
+	 * @param window
+	 *            the number of chunks written between two checkpoints
+	 */
+	public void setWindow(int window)
+	{
+		this.window = window;
+	}
+
+	/**
+	 * @return the characteristic read at every checkpoint, or null
+	 */
+	public BluetoothGattCharacteristic getCheckpointCharacteristic()
+	{
+		return this.checkpointCharacteristic;
+	}
+
+	/**
+	 * Sets the characteristic read at every checkpoint: as reads are
+	 * acknowledged by the device, and processed in order with respect to the
+	 * previous writes, a successful read confirms that all the chunks written
+	 * so far reached the device.
+	 * 
+	 * @param checkpointCharacteristic
+	 *            the characteristic read at every checkpoint, null for no
+	 *            acknowledged checkpoints
+	 */
+	public void setCheckpointCharacteristic(
+			BluetoothGattCharacteristic checkpointCharacteristic)
+	{
+		this.checkpointCharacteristic = checkpointCharacteristic;
+	}
+}
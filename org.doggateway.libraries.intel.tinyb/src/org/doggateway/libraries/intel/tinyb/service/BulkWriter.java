@@ -0,0 +1,224 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import tinyb.BluetoothGattCharacteristic;
+
+/**
+ * Writes a large payload to a characteristic, split in chunks fitting the ATT
+ * MTU. Chunks are read directly from the given buffer, possibly a memory
+ * mapped file, therefore the whole payload is never copied; a single chunk
+ * array is reused for the whole transfer, as TinyB copies the written value
+ * before returning.
+ * <p>
+ * Chunks are written one at a time, each write being a synchronous D-Bus
+ * call: no chunk is issued before the previous one has been handed over. TinyB
+ * does not allow choosing the write type, BlueZ sends write requests (write
+ * with response, one ATT round-trip per chunk) whenever the characteristic has
+ * the "write" property, and resorts to write commands (write without
+ * response) only for characteristics supporting nothing else. In the latter
+ * case chunks are not acknowledged, therefore a checkpoint is performed every
+ * window of chunks: the checkpoint characteristic, if any, is read (an
+ * acknowledged round-trip processed in order with previous writes) and
+ * progress is reported to the listener.
+ * <p>
+ * Chunks and checkpoints are GATT operations of a dedicated
+ * {@link GattClient}, so that a transfer gets its fair share of the radio
+ * without starving the other clients.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class BulkWriter implements Callable<Long>
+{
+	// the characteristic to write
+	private final BluetoothGattCharacteristic target;
+
+	// the data to write, from its position to its limit
+	private final ByteBuffer data;
+
+	// the transfer options
+	private final BulkWriteOptions options;
+
+	// the listener to notify, may be null
+	private final BulkWriteListener listener;
+
+	// the scheduler to suspend during the transfer
+	private final DiscoveryScheduler discoveryScheduler;
+
+	// the GATT client issuing chunks and checkpoints
+	private final GattClient client;
+
+	/**
+	 * Creates a new writer
+	 * 
+	 * @param target
+	 *            The characteristic to write.
+	 * @param data
+	 *            The data to write, from its position to its limit; the
+	 *            buffer is not modified.
+	 * @param options
+	 *            The transfer options.
+	 * @param listener
+	 *            The listener to notify, may be null.
+	 * @param discoveryScheduler
+	 *            The discovery scheduler, suspended during the transfer.
+	 * @param client
+	 *            The GATT client issuing chunks and checkpoints.
+	 */
+	BulkWriter(BluetoothGattCharacteristic target, ByteBuffer data,
+			BulkWriteOptions options, BulkWriteListener listener,
+			DiscoveryScheduler discoveryScheduler, GattClient client)
+	{
+		if ((options.getChunkSize() <= 0) || (options.getWindow() <= 0))
+			throw new IllegalArgumentException(
+					"Chunk size and window must be positive");
+
+		this.target = target;
+		this.data = data.duplicate();
+		this.options = options;
+		this.listener = listener;
+		this.discoveryScheduler = discoveryScheduler;
+		this.client = client;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Callable#call()
+	 */
+	@Override
+	public Long call() throws IOException
+	{
+		long total = this.data.remaining();
+		long written = 0;
+		long start = System.currentTimeMillis();
+		boolean success = false;
+
+		// the reused chunk
+		byte[] chunk = new byte[this.options.getChunkSize()];
+
+		// the number of chunks written since the last checkpoint
+		int inWindow = 0;
+
+		// scanning competes with the transfer for airtime
+		this.discoveryScheduler.suspend();
+		try
+		{
+			while (this.data.hasRemaining())
+			{
+				// stop if cancelled
+				if (Thread.currentThread().isInterrupted())
+					throw new InterruptedIOException(
+							"Bulk write cancelled at offset " + written);
+
+				// only the last chunk can be shorter
+				if (this.data.remaining() < chunk.length)
+					chunk = new byte[this.data.remaining()];
+
+				// the chunk is reused only after the write completed
+				this.data.get(chunk);
+				if (!this.await(this.client.write(this.target, chunk), written))
+					throw new IOException(
+							"Bulk write failed at offset " + written);
+
+				written += chunk.length;
+				inWindow++;
+
+				// checkpoint at the end of every window and at the end of
+				// the transfer
+				if ((inWindow == this.options.getWindow())
+						|| (!this.data.hasRemaining()))
+				{
+					inWindow = 0;
+					if (!this.checkpoint(written, total, start))
+						throw new IOException(
+								"Bulk write aborted at offset " + written);
+				}
+			}
+			success = true;
+		}
+		finally
+		{
+			this.discoveryScheduler.resume();
+
+			if (this.listener != null)
+				this.listener.completed(success, written,
+						System.currentTimeMillis() - start);
+		}
+
+		return written;
+	}
+
+	/**
+	 * Performs a checkpoint, reading the checkpoint characteristic, if any,
+	 * and reporting progress.
+	 * 
+	 * @return true if the transfer shall continue, false otherwise.
+	 */
+	private boolean checkpoint(long written, long total, long start)
+			throws IOException
+	{
+		// wait for all the previous chunks to be acknowledged
+		BluetoothGattCharacteristic checkpoint = this.options
+				.getCheckpointCharacteristic();
+		if (checkpoint != null)
+			this.await(this.client.read(checkpoint), written);
+
+		if (this.listener == null)
+			return true;
+
+		// the average throughput, avoiding divisions by zero
+		long elapsed = Math.max(1, System.currentTimeMillis() - start);
+		return this.listener.checkpoint(written, total,
+				(written * 1000) / elapsed);
+	}
+
+	/**
+	 * Waits for the given GATT operation of the transfer.
+	 * 
+	 * @return The operation result.
+	 */
+	private <T> T await(Future<T> operation, long written) throws IOException
+	{
+		try
+		{
+			return operation.get();
+		}
+		catch (InterruptedException e)
+		{
+			// the transfer has been cancelled
+			operation.cancel(false);
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Bulk write cancelled at offset " + written);
+		}
+		catch (ExecutionException e)
+		{
+			throw new IOException("Bulk write failed at offset " + written,
+					e.getCause());
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.Arrays;
+
+/**
+ * An immutable snapshot of the latest value notified by a characteristic, as
+ * held by the service last-value cache. Every new notification replaces the
+ * cached snapshot with a new one having a greater sequence number, therefore
+ * readers can detect changes by simply comparing sequence numbers.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class CachedValue
+{
+	// the notified value, never exposed to avoid modifications
+	private final byte[] value;
+
+	// the sequence number, starting from 1 for the first notification
+	private final long sequence;
+
+	// the reception time, in milliseconds since the epoch
+	private final long timestamp;
+
+	/**
+	 * Creates a new snapshot, taking ownership of the given value.
+	 * 
+	 * @param value
+	 *            The notified value.
+	 * @param sequence
+	 *            The snapshot sequence number.
+	 * @param timestamp
+	 *            The reception time, in milliseconds since the epoch.
+	 */
+	CachedValue(byte[] value, long sequence, long timestamp)
+	{
+		this.value = value;
+		this.sequence = sequence;
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * @return a copy of the notified value
+	 */
+	public byte[] getValue()
+	{
+		return Arrays.copyOf(this.value, this.value.length);
+	}
+
+	/**
+	 * Copies the notified value in the given buffer, avoiding any allocation.
+	 * 
+	 * @param destination
+	 *            The buffer in which the value shall be copied.
+	 * @return The value length, only the first destination.length bytes are
+	 *         copied if the value is longer than the given buffer.
+	 */
+	public int copyValue(byte[] destination)
+	{
+		System.arraycopy(this.value, 0, destination, 0,
+				Math.min(this.value.length, destination.length));
+		return this.value.length;
+	}
+
+	/**
+	 * @return the value length, in bytes
+	 */
+	public int getLength()
+	{
+		return this.value.length;
+	}
+
+	/**
+	 * Provides a single byte of the notified value.
+	 * 
+	 * @param index
+	 *            The index of the byte to get.
+	 * @return The byte at the given index.
+	 */
+	public byte getByte(int index)
+	{
+		return this.value[index];
+	}
+
+	/**
+	 * @return the sequence number, growing by one at every notification
+	 */
+	public long getSequence()
+	{
+		return this.sequence;
+	}
+
+	/**
+	 * @return the reception time, in milliseconds since the epoch
+	 */
+	public long getTimestamp()
+	{
+		return this.timestamp;
+	}
+
+	/**
+	 * Checks if the value changed since the given sequence number has been
+	 * observed.
+	 * 
+	 * @param sequence
+	 *            The last sequence number observed by the reader.
+	 * @return true if this snapshot is newer, false otherwise.
+	 */
+	public boolean isNewerThan(long sequence)
+	{
+		return this.sequence > sequence;
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Defines when a notified value is different enough from the last delivered
+ * one to be reported to the listeners of a characteristic (report by
+ * exception): either on any change of the raw payload or when a decoded value
+ * moves by more than an absolute or a percentage threshold. A maximum silence
+ * interval forces the delivery of a heartbeat value even if nothing changed.
+ * Deadbands are immutable and can be shared among characteristics.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class Deadband
+{
+	// the decoder used to compare values, null to compare raw payloads
+	private final PayloadDecoder decoder;
+
+	// the change threshold
+	private final float threshold;
+
+	// true if the threshold is a percentage of the last delivered value
+	private final boolean percent;
+
+	// the maximum time without deliveries, in milliseconds, non-positive for
+	// no heartbeat
+	private final long maxSilenceMillis;
+
+	/**
+	 * Creates a new deadband, use the static factory methods instead.
+	 */
+	private Deadband(PayloadDecoder decoder, float threshold, boolean percent,
+			long maxSilenceMillis)
+	{
+		this.decoder = decoder;
+		this.threshold = Math.abs(threshold);
+		this.percent = percent;
+		this.maxSilenceMillis = maxSilenceMillis;
+	}
+
+	/**
+	 * Creates a deadband reporting any change of the raw payload, compared
+	 * byte-wise.
+	 * 
+	 * @param maxSilenceMillis
+	 *            The maximum time without deliveries after which an unchanged
+	 *            value is delivered anyway, in milliseconds, 0 for no
+	 *            heartbeat.
+	 * @return The deadband.
+	 */
+	public static Deadband onChange(long maxSilenceMillis)
+	{
+		return new Deadband(null, 0, false, maxSilenceMillis);
+	}
+
+	/**
+	 * Creates a deadband reporting values when any of the decoded values
+	 * moves by more than the given amount from the last delivered one.
+	 * 
+	 * @param decoder
+	 *            The decoder extracting values from payloads.
+	 * @param threshold
+	 *            The change threshold, in the units of the decoded values.
+	 * @param maxSilenceMillis
+	 *            The maximum time without deliveries after which an unchanged
+	 *            value is delivered anyway, in milliseconds, 0 for no
+	 *            heartbeat.
+	 * @return The deadband.
+	 */
+	public static Deadband absolute(PayloadDecoder decoder, float threshold,
+			long maxSilenceMillis)
+	{
+		return new Deadband(decoder, threshold, false, maxSilenceMillis);
+	}
+
+	/**
+	 * Creates a deadband reporting values when any of the decoded values
+	 * moves by more than the given percentage of the last delivered one.
+	 * 
+	 * @param decoder
+	 *            The decoder extracting values from payloads.
+	 * @param percent
+	 *            The change threshold, as a percentage of the last delivered
+	 *            value.
+	 * @param maxSilenceMillis
+	 *            The maximum time without deliveries after which an unchanged
+	 *            value is delivered anyway, in milliseconds, 0 for no
+	 *            heartbeat.
+	 * @return The deadband.
+	 */
+	public static Deadband percent(PayloadDecoder decoder, float percent,
+			long maxSilenceMillis)
+	{
+		return new Deadband(decoder, percent, true, maxSilenceMillis);
+	}
+
+	/**
+	 * @return the decoder used to compare values, null if raw payloads are
+	 *         compared
+	 */
+	public PayloadDecoder getDecoder()
+	{
+		return this.decoder;
+	}
+
+	/**
+	 * @return the maximum time without deliveries in milliseconds,
+	 *         non-positive if no heartbeat is delivered
+	 */
+	public long getMaxSilenceMillis()
+	{
+		return this.maxSilenceMillis;
+	}
+
+	/**
+	 * Checks if a decoded value is outside of the deadband centered on the
+	 * last delivered one.
+	 * 
+	 * @param last
+	 *            The last delivered value.
+	 * @param value
+	 *            The new value.
+	 * @return true if the change shall be reported, false otherwise.
+	 */
+	public boolean exceeds(float last, float value)
+	{
+		float band = this.percent ? Math.abs(last) * this.threshold / 100f
+				: this.threshold;
+
+		// NaN values are always reported, as they cannot be compared
+		return !(Math.abs(value - last) <= band);
+	}
+}
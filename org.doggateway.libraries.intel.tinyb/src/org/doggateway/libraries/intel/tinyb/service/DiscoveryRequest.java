@@ -0,0 +1,98 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.Collections;
+import java.util.Set;
+
+/**
+ * A discovery request issued by a client of the {@link BluetoothService}.
+ * Discovery runs as long as at least one request is active and, for requests
+ * targeting specific devices, as long as at least one of the requested
+ * devices has not been seen yet. Requests must be released when discovery is
+ * no longer needed.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class DiscoveryRequest
+{
+	// the requested device addresses, empty for generic requests
+	private final Set<String> addresses;
+
+	// the scheduler handling the request
+	private final DiscoveryScheduler scheduler;
+
+	// the released flag
+	private volatile boolean released;
+
+	/**
+	 * Creates a new request for the given device addresses.
+	 * 
+	 * @param addresses
+	 *            The requested device addresses, empty for a generic request.
+	 * @param scheduler
+	 *            The scheduler handling the request.
+	 */
+	DiscoveryRequest(Set<String> addresses, DiscoveryScheduler scheduler)
+	{
+		this.addresses = Collections.unmodifiableSet(addresses);
+		this.scheduler = scheduler;
+		this.released = false;
+	}
+
+	/**
+	 * @return the requested device addresses, empty for generic requests
+	 */
+	public Set<String> getAddresses()
+	{
+		return this.addresses;
+	}
+
+	/**
+	 * Checks if the request is a generic one, i.e., if it requires discovery
+	 * regardless of the devices already seen.
+	 * 
+	 * @return true if generic, false otherwise.
+	 */
+	public boolean isGeneric()
+	{
+		return this.addresses.isEmpty();
+	}
+
+	/**
+	 * @return true if the request has been released, false otherwise
+	 */
+	public boolean isReleased()
+	{
+		return this.released;
+	}
+
+	/**
+	 * Releases the request, discovery stops as soon as no active request
+	 * needs it anymore. Releasing an already released request has no effect.
+	 */
+	public void release()
+	{
+		if (!this.released)
+		{
+			this.released = true;
+			this.scheduler.release(this);
+		}
+	}
+}
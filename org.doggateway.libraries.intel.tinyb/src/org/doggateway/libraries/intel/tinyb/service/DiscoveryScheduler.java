@@ -0,0 +1,405 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tinyb.BluetoothAdapter;
+import tinyb.BluetoothDevice;
+
+/**
+ * Runs device discovery on behalf of all the clients of the
+ * {@link BluetoothService}. Discovery requests are reference counted and
+ * discovery is performed in duty-cycled windows, only while at least one
+ * request needs it. As discovery shares the radio with active connections,
+ * scanning is suspended while connections are being set up and while the
+ * notification rate handled by the service exceeds a given threshold, and
+ * resumed afterwards if requested devices are still missing.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class DiscoveryScheduler implements NotificationStage
+{
+	// default duration of a scan window, in milliseconds
+	static long DEFAULT_WINDOW_MILLIS = 5000;
+
+	// default time between the start of two subsequent scan windows, in
+	// milliseconds
+	static long DEFAULT_INTERVAL_MILLIS = 15000;
+
+	// default notification rate (notifications/s) above which scanning is
+	// suspended
+	static int DEFAULT_STREAMING_THRESHOLD = 50;
+
+	// the period at which the scheduler re-evaluates the scanning state
+	private static final long TICK_MILLIS = 500;
+
+	// the service providing access to the adapters
+	private final BluetoothService service;
+
+	// the executor running the scheduler ticks
+	private final ScheduledExecutorService executor;
+
+	// the active requests
+	private final List<DiscoveryRequest> requests;
+
+	// the number of notifications received so far
+	private final AtomicLong notifications;
+
+	// the duration of a scan window, in milliseconds
+	private long windowMillis;
+
+	// the time between the start of two subsequent scan windows
+	private long intervalMillis;
+
+	// the notification rate above which scanning is suspended
+	private int streamingThreshold;
+
+	// the number of active suspensions (e.g., connections being set up)
+	private int suspensions;
+
+	// the scanning flag
+	private boolean scanning;
+
+	// the end of the current scan window
+	private long windowEnd;
+
+	// the earliest start of the next scan window
+	private long nextWindowStart;
+
+	// the notification count and time at the last tick
+	private long lastNotifications;
+	private long lastTick;
+
+	// the notification rate measured at the last tick
+	private long notificationRate;
+
+	// the periodic tick, null when the scheduler is not running
+	private ScheduledFuture<?> ticker;
+
+	/**
+	 * Creates a new scheduler using the default duty cycle.
+	 * 
+	 * @param service
+	 *            The service providing access to the adapters.
+	 * @param executor
+	 *            The executor running the scheduler ticks.
+	 */
+	DiscoveryScheduler(BluetoothService service,
+			ScheduledExecutorService executor)
+	{
+		this.service = service;
+		this.executor = executor;
+		this.requests = new ArrayList<>();
+		this.notifications = new AtomicLong();
+		this.windowMillis = DiscoveryScheduler.DEFAULT_WINDOW_MILLIS;
+		this.intervalMillis = DiscoveryScheduler.DEFAULT_INTERVAL_MILLIS;
+		this.streamingThreshold = DiscoveryScheduler.DEFAULT_STREAMING_THRESHOLD;
+	}
+
+	/**
+	 * Sets the scanning duty cycle and the streaming threshold.
+	 * 
+	 * @param windowMillis
+	 *            The duration of a scan window, in milliseconds.
+	 * @param intervalMillis
+	 *            The time between the start of two subsequent scan windows, in
+	 *            milliseconds. Scanning is continuous if not greater than the
+	 *            window duration.
+	 * @param streamingThreshold
+	 *            The notification rate, in notifications per second, above
+	 *            which scanning is suspended, a negative value disables
+	 *            suspension due to streaming.
+	 */
+	synchronized void configure(long windowMillis, long intervalMillis,
+			int streamingThreshold)
+	{
+		this.windowMillis = windowMillis;
+		this.intervalMillis = intervalMillis;
+		this.streamingThreshold = streamingThreshold;
+	}
+
+	/**
+	 * Issues a new discovery request for the given device addresses.
+	 * 
+	 * @param addresses
+	 *            The addresses of the devices to discover, none for a generic
+	 *            request.
+	 * @return The request, to be released when discovery is no longer needed.
+	 */
+	DiscoveryRequest request(String... addresses)
+	{
+		DiscoveryRequest request = new DiscoveryRequest(
+				new HashSet<>(Arrays.asList(addresses)), this);
+
+		synchronized (this)
+		{
+			this.requests.add(request);
+
+			// start ticking, if needed
+			if (this.ticker == null)
+				this.ticker = this.executor.scheduleWithFixedDelay(
+						new Runnable()
+						{
+							@Override
+							public void run()
+							{
+								try
+								{
+									DiscoveryScheduler.this.tick();
+								}
+								catch (RuntimeException e)
+								{
+									// the adapters may be temporarily
+									// unavailable, an uncaught exception
+									// would silently cancel the ticks
+								}
+							}
+						}, 0, DiscoveryScheduler.TICK_MILLIS,
+						TimeUnit.MILLISECONDS);
+		}
+
+		return request;
+	}
+
+	/**
+	 * Releases the given request, called by {@link DiscoveryRequest#release()}
+	 * 
+	 * @param request
+	 *            The request to release.
+	 */
+	synchronized void release(DiscoveryRequest request)
+	{
+		this.requests.remove(request);
+
+		// stop ticking when no more requests are active
+		if (this.requests.isEmpty())
+		{
+			this.stopScanning();
+
+			if (this.ticker != null)
+			{
+				this.ticker.cancel(false);
+				this.ticker = null;
+			}
+		}
+	}
+
+	/**
+	 * Suspends scanning, e.g., while a connection is being set up. Each call
+	 * must be matched by a call to {@link #resume()}.
+	 */
+	synchronized void suspend()
+	{
+		this.suspensions++;
+
+		// stop immediately, without waiting for the next tick
+		this.stopScanning();
+	}
+
+	/**
+	 * Removes a suspension, scanning resumes at the next window if requested
+	 * devices are still missing.
+	 */
+	synchronized void resume()
+	{
+		if (this.suspensions > 0)
+			this.suspensions--;
+	}
+
+	/**
+	 * Releases all requests and stops scanning.
+	 */
+	synchronized void shutdown()
+	{
+		for (DiscoveryRequest request : new ArrayList<>(this.requests))
+			request.release();
+	}
+
+	/**
+	 * @return true if the scheduler is currently scanning
+	 */
+	synchronized boolean isScanning()
+	{
+		return this.scanning;
+	}
+
+	/**
+	 * Re-evaluates the scanning state: starts a new window if scanning is
+	 * needed and allowed, stops the current one if the window is over or
+	 * scanning is no longer needed or allowed.
+	 */
+	synchronized void tick()
+	{
+		long now = System.currentTimeMillis();
+
+		// update the notification rate
+		long count = this.notifications.get();
+		if (now > this.lastTick)
+			this.notificationRate = ((count - this.lastNotifications) * 1000)
+					/ (now - this.lastTick);
+		this.lastNotifications = count;
+		this.lastTick = now;
+
+		// check if scanning is currently allowed
+		boolean allowed = (this.suspensions == 0)
+				&& ((this.streamingThreshold < 0) || (this.notificationRate <= this.streamingThreshold));
+
+		if (this.scanning)
+		{
+			// stop at the end of the window, or as soon as scanning is no
+			// longer allowed or needed
+			if ((!allowed) || (now >= this.windowEnd) || (!this.isNeeded()))
+				this.stopScanning();
+		}
+		else if ((allowed) && (now >= this.nextWindowStart)
+				&& (this.isNeeded()))
+		{
+			this.startScanning();
+
+			// scan continuously if the window covers the whole interval
+			this.windowEnd = (this.windowMillis >= this.intervalMillis)
+					? Long.MAX_VALUE : now + this.windowMillis;
+			this.nextWindowStart = now + this.intervalMillis;
+		}
+	}
+
+	/**
+	 * Checks if at least one active request needs scanning, i.e., if a
+	 * generic request is active or a requested device has not been seen yet.
+	 * 
+	 * @return true if scanning is needed, false otherwise.
+	 */
+	private boolean isNeeded()
+	{
+		// the addresses still to be found
+		Set<String> missing = new HashSet<>();
+
+		for (DiscoveryRequest request : this.requests)
+		{
+			if (request.isGeneric())
+				return true;
+
+			missing.addAll(request.getAddresses());
+		}
+
+		// remove the devices already seen by any adapter
+		if (!missing.isEmpty())
+		{
+			for (BluetoothDevice device : this.service.getManager()
+					.getDevices())
+				missing.remove(device.getAddress());
+		}
+
+		return !missing.isEmpty();
+	}
+
+	/**
+	 * Starts discovery on all the powered adapters.
+	 */
+	private void startScanning()
+	{
+		for (BluetoothAdapter adapter : this.service.getAdapters())
+		{
+			try
+			{
+				if (adapter.getPowered())
+					adapter.startDiscovery();
+			}
+			catch (RuntimeException e)
+			{
+				// the adapter may be busy or gone, try with the others
+			}
+		}
+		this.scanning = true;
+	}
+
+	/**
+	 * Stops discovery on all the adapters, if started by this scheduler.
+	 */
+	private void stopScanning()
+	{
+		if (!this.scanning)
+			return;
+
+		for (BluetoothAdapter adapter : this.service.getAdapters())
+		{
+			try
+			{
+				if (adapter.getDiscovering())
+					adapter.stopDiscovery();
+			}
+			catch (RuntimeException e)
+			{
+				// the adapter may be busy or gone, try with the others
+			}
+		}
+		this.scanning = false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelOpened(NotificationChannel channel)
+	{
+		// nothing to do, only the overall rate is tracked
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelClosed(NotificationChannel channel)
+	{
+		// nothing to do, only the overall rate is tracked
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		// just count, the rate is computed at every tick
+		this.notifications.incrementAndGet();
+		return true;
+	}
+}
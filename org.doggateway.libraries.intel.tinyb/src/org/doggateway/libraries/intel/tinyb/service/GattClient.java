@@ -0,0 +1,303 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import tinyb.BluetoothGattCharacteristic;
+
+/**
+ * A client of the fair GATT scheduler, typically one per bundle, obtained
+ * through {@link BluetoothService#registerClient(String, int)}. GATT
+ * operations issued through a client are queued and executed one at a time
+ * on the shared radio: clients are served by weighted fair queuing, each
+ * client can be rate limited by a token bucket and can hold at most a given
+ * number of pending operations (its quota). Per-client usage statistics are
+ * kept for diagnostics.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class GattClient
+{
+	// default maximum number of pending operations per client
+	public static int DEFAULT_QUOTA = 64;
+
+	// the client name
+	private final String name;
+
+	// the scheduler serving the client
+	private final GattScheduler scheduler;
+
+	// the pending operations, guarded by the scheduler
+	final ArrayDeque<GattOperation<?>> queue;
+
+	// the client weight, guarded by the scheduler
+	int weight;
+
+	// the maximum number of pending operations, guarded by the scheduler
+	int quota;
+
+	// the token bucket: rate (tokens/s, non-positive for no limit), burst
+	// size, available tokens and last refill time, guarded by the scheduler
+	double rate;
+	double burst;
+	double tokens;
+	long lastRefill;
+
+	// the virtual finish time of the last queued operation, guarded by the
+	// scheduler
+	double lastFinish;
+
+	// the registration flag, guarded by the scheduler
+	boolean registered;
+
+	// the usage statistics
+	final AtomicLong submitted;
+	final AtomicLong rejected;
+	final AtomicLong completed;
+	final AtomicLong failed;
+	final AtomicLong waitNanos;
+	final AtomicLong busyNanos;
+
+	/**
+	 * Creates a new client, with no rate limit and the default quota.
+	 * 
+	 * @param name
+	 *            The client name, e.g., the bundle symbolic name.
+	 * @param weight
+	 *            The client weight.
+	 * @param scheduler
+	 *            The scheduler serving the client.
+	 */
+	GattClient(String name, int weight, GattScheduler scheduler)
+	{
+		this.name = name;
+		this.weight = Math.max(1, weight);
+		this.scheduler = scheduler;
+		this.queue = new ArrayDeque<>();
+		this.quota = GattClient.DEFAULT_QUOTA;
+		this.rate = -1;
+		this.registered = true;
+		this.submitted = new AtomicLong();
+		this.rejected = new AtomicLong();
+		this.completed = new AtomicLong();
+		this.failed = new AtomicLong();
+		this.waitNanos = new AtomicLong();
+		this.busyNanos = new AtomicLong();
+	}
+
+	/**
+	 * @return the client name
+	 */
+	public String getName()
+	{
+		return this.name;
+	}
+
+	/**
+	 * Reads the given characteristic.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to read.
+	 * @return The future read value.
+	 * @throws RejectedExecutionException
+	 *             If the client quota is exhausted or the client has been
+	 *             unregistered.
+	 */
+	public Future<byte[]> read(
+			final BluetoothGattCharacteristic characteristic)
+	{
+		return this.submit(new Callable<byte[]>()
+		{
+			@Override
+			public byte[] call() throws Exception
+			{
+				return characteristic.readValue();
+			}
+		});
+	}
+
+	/**
+	 * Writes the given characteristic.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to write.
+	 * @param value
+	 *            The value to write.
+	 * @return The future write outcome.
+	 * @throws RejectedExecutionException
+	 *             If the client quota is exhausted or the client has been
+	 *             unregistered.
+	 */
+	public Future<Boolean> write(
+			final BluetoothGattCharacteristic characteristic,
+			final byte[] value)
+	{
+		return this.submit(new Callable<Boolean>()
+		{
+			@Override
+			public Boolean call() throws Exception
+			{
+				return characteristic.writeValue(value);
+			}
+		});
+	}
+
+	/**
+	 * Submits a custom GATT operation, e.g., a sequence of operations to be
+	 * performed without interleaving with other clients.
+	 * 
+	 * @param operation
+	 *            The operation.
+	 * @return The future operation result.
+	 * @throws RejectedExecutionException
+	 *             If the client quota is exhausted or the client has been
+	 *             unregistered.
+	 */
+	public <T> Future<T> submit(Callable<T> operation)
+	{
+		return this.scheduler.submit(this, operation);
+	}
+
+	/**
+	 * Limits the rate at which the operations of this client are executed.
+	 * 
+	 * @param operationsPerSecond
+	 *            The sustained rate, non-positive for no limit.
+	 * @param burst
+	 *            The number of operations that can be executed at once after
+	 *            an idle period, at least 1.
+	 */
+	public void setRateLimit(double operationsPerSecond, int burst)
+	{
+		this.scheduler.setRateLimit(this, operationsPerSecond, burst);
+	}
+
+	/**
+	 * Sets the maximum number of pending operations of this client, further
+	 * operations being rejected.
+	 * 
+	 * @param quota
+	 *            The maximum number of pending operations.
+	 */
+	public void setQuota(int quota)
+	{
+		this.scheduler.setQuota(this, quota);
+	}
+
+	/**
+	 * Sets the client weight: when competing for the radio, clients get a
+	 * share of the operations proportional to their weight.
+	 * 
+	 * @param weight
+	 *            The weight, at least 1.
+	 */
+	public void setWeight(int weight)
+	{
+		this.scheduler.setWeight(this, weight);
+	}
+
+	/**
+	 * Unregisters the client, cancelling its pending operations.
+	 */
+	public void unregister()
+	{
+		this.scheduler.unregister(this);
+	}
+
+	/**
+	 * @return the number of accepted operations
+	 */
+	public long getSubmittedCount()
+	{
+		return this.submitted.get();
+	}
+
+	/**
+	 * @return the number of operations rejected as the quota was exhausted
+	 */
+	public long getRejectedCount()
+	{
+		return this.rejected.get();
+	}
+
+	/**
+	 * @return the number of operations executed successfully
+	 */
+	public long getCompletedCount()
+	{
+		return this.completed.get();
+	}
+
+	/**
+	 * @return the number of operations failed or cancelled
+	 */
+	public long getFailedCount()
+	{
+		return this.failed.get();
+	}
+
+	/**
+	 * @return the number of pending operations
+	 */
+	public int getPendingCount()
+	{
+		return this.scheduler.getPendingCount(this);
+	}
+
+	/**
+	 * @return the average time spent by operations in the queue, in
+	 *         milliseconds
+	 */
+	public double getAverageWaitMillis()
+	{
+		long executed = this.completed.get() + this.failed.get();
+		return (executed > 0) ? this.waitNanos.get() / 1e6 / executed : 0;
+	}
+
+	/**
+	 * @return the overall time during which the radio has been busy with the
+	 *         operations of this client, in milliseconds
+	 */
+	public long getBusyMillis()
+	{
+		return this.busyNanos.get() / 1000000;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return this.name + " [submitted=" + this.getSubmittedCount()
+				+ ", rejected=" + this.getRejectedCount() + ", completed="
+				+ this.getCompletedCount() + ", failed="
+				+ this.getFailedCount() + ", pending="
+				+ this.getPendingCount() + ", avgWaitMs="
+				+ this.getAverageWaitMillis() + ", busyMs="
+				+ this.getBusyMillis() + "]";
+	}
+}
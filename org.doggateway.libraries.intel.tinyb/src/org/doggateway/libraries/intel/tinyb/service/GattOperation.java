@@ -0,0 +1,60 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A GATT operation queued by a {@link GattClient} on the
+ * {@link GattScheduler}, tagged with its weighted fair queuing finish time.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ * @param <T>
+ *            The operation result type.
+ */
+class GattOperation<T> extends FutureTask<T>
+{
+	// the client issuing the operation
+	final GattClient client;
+
+	// the virtual finish time, ordering operations among clients
+	final double finishTag;
+
+	// the time at which the operation has been queued, in nanoseconds
+	final long queuedAt;
+
+	/**
+	 * Creates a new operation.
+	 * 
+	 * @param client
+	 *            The client issuing the operation.
+	 * @param operation
+	 *            The actual GATT operation.
+	 * @param finishTag
+	 *            The virtual finish time.
+	 */
+	GattOperation(GattClient client, Callable<T> operation, double finishTag)
+	{
+		super(operation);
+		this.client = client;
+		this.finishTag = finishTag;
+		this.queuedAt = System.nanoTime();
+	}
+}
@@ -0,0 +1,389 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Executes the GATT operations of all the registered {@link GattClient}s one
+ * at a time, as they share the same radio, using start-time weighted fair
+ * queuing: every operation is tagged with a virtual finish time growing by
+ * the inverse of the client weight, and the pending operation having the
+ * smallest tag among the clients allowed by their token bucket is executed
+ * next. Busy clients therefore get radio time proportional to their weight,
+ * and a chatty client cannot delay the others by more than one operation.
+ * <p>
+ * The worker runs on the given executor only while operations are pending.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class GattScheduler
+{
+	// the executor running the worker
+	private final Executor executor;
+
+	// the registered clients
+	private final List<GattClient> clients;
+
+	// the virtual time, i.e., the finish tag of the last started operation
+	private double virtualTime;
+
+	// the number of pending operations, among all clients
+	private int pending;
+
+	// true while the worker is running
+	private boolean running;
+
+	// the shutdown flag
+	private boolean closed;
+
+	/**
+	 * Creates a new scheduler.
+	 * 
+	 * @param executor
+	 *            The executor running the worker.
+	 */
+	GattScheduler(Executor executor)
+	{
+		this.executor = executor;
+		this.clients = new ArrayList<>();
+	}
+
+	/**
+	 * Registers a new client.
+	 * 
+	 * @param name
+	 *            The client name.
+	 * @param weight
+	 *            The client weight.
+	 * @return The client.
+	 */
+	synchronized GattClient register(String name, int weight)
+	{
+		if (this.closed)
+			throw new IllegalStateException("The GATT scheduler is shut down");
+
+		GattClient client = new GattClient(name, weight, this);
+		this.clients.add(client);
+		return client;
+	}
+
+	/**
+	 * Unregisters the given client, cancelling its pending operations.
+	 * 
+	 * @param client
+	 *            The client to unregister.
+	 */
+	synchronized void unregister(GattClient client)
+	{
+		if (this.clients.remove(client))
+		{
+			client.registered = false;
+			this.cancelPending(client);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the registered clients
+	 */
+	synchronized List<GattClient> getClients()
+	{
+		return new ArrayList<>(this.clients);
+	}
+
+	/**
+	 * Limits the rate of the given client.
+	 * 
+	 * @param client
+	 *            The client.
+	 * @param rate
+	 *            The sustained rate in operations per second, non-positive
+	 *            for no limit.
+	 * @param burst
+	 *            The bucket size, at least 1.
+	 */
+	synchronized void setRateLimit(GattClient client, double rate, int burst)
+	{
+		long now = System.nanoTime();
+
+		// settle the tokens earned so far, reconfiguring shall not refill
+		// the bucket: only a newly enabled limit starts with a full one
+		boolean enabled = (client.rate <= 0) && (rate > 0);
+		GattScheduler.refill(client, now);
+
+		client.rate = rate;
+		client.burst = Math.max(1, burst);
+		client.tokens = enabled ? client.burst
+				: Math.min(client.tokens, client.burst);
+		client.lastRefill = now;
+
+		// the worker may be waiting for tokens
+		this.notifyAll();
+	}
+
+	/**
+	 * Sets the maximum number of pending operations of the given client.
+	 * 
+	 * @param client
+	 *            The client.
+	 * @param quota
+	 *            The quota, at least 1.
+	 */
+	synchronized void setQuota(GattClient client, int quota)
+	{
+		client.quota = Math.max(1, quota);
+	}
+
+	/**
+	 * Sets the weight of the given client, applied to its next operations.
+	 * 
+	 * @param client
+	 *            The client.
+	 * @param weight
+	 *            The weight, at least 1.
+	 */
+	synchronized void setWeight(GattClient client, int weight)
+	{
+		client.weight = Math.max(1, weight);
+	}
+
+	/**
+	 * @return the number of pending operations of the given client
+	 */
+	synchronized int getPendingCount(GattClient client)
+	{
+		return client.queue.size();
+	}
+
+	/**
+	 * Queues an operation of the given client.
+	 * 
+	 * @param client
+	 *            The client issuing the operation.
+	 * @param operation
+	 *            The operation.
+	 * @return The future operation result.
+	 */
+	synchronized <T> Future<T> submit(GattClient client,
+			Callable<T> operation)
+	{
+		if (this.closed || !client.registered
+				|| (client.queue.size() >= client.quota))
+		{
+			client.rejected.incrementAndGet();
+			throw new RejectedExecutionException("GATT operation of "
+					+ client.getName() + " rejected: "
+					+ (client.registered ? "quota exhausted"
+							: "client not registered"));
+		}
+
+		// tag the operation, idle clients restart from the current virtual
+		// time and do not accumulate credit
+		double start = Math.max(this.virtualTime, client.lastFinish);
+		client.lastFinish = start + 1.0 / client.weight;
+
+		GattOperation<T> gattOperation = new GattOperation<>(client, operation,
+				client.lastFinish);
+		client.queue.addLast(gattOperation);
+		client.submitted.incrementAndGet();
+		this.pending++;
+
+		// start the worker, if needed
+		if (!this.running)
+		{
+			this.running = true;
+			this.executor.execute(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					GattScheduler.this.work();
+				}
+			});
+		}
+		else
+			this.notifyAll();
+
+		return gattOperation;
+	}
+
+	/**
+	 * Cancels all pending operations and rejects new ones.
+	 */
+	synchronized void shutdown()
+	{
+		this.closed = true;
+		for (GattClient client : this.clients)
+			this.cancelPending(client);
+		this.notifyAll();
+	}
+
+	/**
+	 * The worker loop, executing operations until none is pending.
+	 */
+	private void work()
+	{
+		while (true)
+		{
+			GattOperation<?> operation;
+			try
+			{
+				operation = this.take();
+			}
+			catch (InterruptedException e)
+			{
+				// the executor is being shut down
+				synchronized (this)
+				{
+					this.running = false;
+				}
+				return;
+			}
+			if (operation == null)
+				return;
+
+			long start = System.nanoTime();
+			operation.run();
+			long end = System.nanoTime();
+
+			// update the client statistics
+			GattClient client = operation.client;
+			client.waitNanos.addAndGet(start - operation.queuedAt);
+			client.busyNanos.addAndGet(end - start);
+			if (GattScheduler.succeeded(operation))
+				client.completed.incrementAndGet();
+			else
+				client.failed.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Takes the next operation to execute, waiting for tokens if needed.
+	 * 
+	 * @return The operation, or null if no operation is pending, in which
+	 *         case the worker shall stop.
+	 */
+	private synchronized GattOperation<?> take() throws InterruptedException
+	{
+		while (true)
+		{
+			if (this.pending == 0)
+			{
+				this.running = false;
+				return null;
+			}
+
+			long now = System.nanoTime();
+
+			// the eligible client with the smallest finish tag, and the
+			// shortest wait for a token among the others
+			GattClient next = null;
+			long wait = Long.MAX_VALUE;
+			for (GattClient client : this.clients)
+			{
+				GattOperation<?> head = client.queue.peekFirst();
+				if (head == null)
+					continue;
+
+				long tokenWait = GattScheduler.refill(client, now);
+				if (tokenWait > 0)
+					wait = Math.min(wait, tokenWait);
+				else if ((next == null)
+						|| (head.finishTag < next.queue.peekFirst().finishTag))
+					next = client;
+			}
+
+			if (next != null)
+			{
+				GattOperation<?> operation = next.queue.pollFirst();
+				if (next.rate > 0)
+					next.tokens -= 1;
+				this.virtualTime = Math.max(this.virtualTime,
+						operation.finishTag - 1.0 / next.weight);
+				this.pending--;
+				return operation;
+			}
+
+			// wait for the first token, or for new operations
+			this.wait(Math.max(1, wait / 1000000));
+		}
+	}
+
+	/**
+	 * Refills the token bucket of the given client.
+	 * 
+	 * @return The time to wait for a token in nanoseconds, 0 if a token is
+	 *         available.
+	 */
+	private static long refill(GattClient client, long now)
+	{
+		if (client.rate <= 0)
+			return 0;
+
+		client.tokens = Math.min(client.burst, client.tokens
+				+ (now - client.lastRefill) * client.rate / 1e9);
+		client.lastRefill = now;
+
+		return (client.tokens >= 1) ? 0
+				: (long) ((1 - client.tokens) * 1e9 / client.rate);
+	}
+
+	/**
+	 * Cancels the pending operations of the given client.
+	 */
+	private void cancelPending(GattClient client)
+	{
+		GattOperation<?> operation;
+		while ((operation = client.queue.pollFirst()) != null)
+		{
+			operation.cancel(false);
+			client.failed.incrementAndGet();
+			this.pending--;
+		}
+	}
+
+	/**
+	 * Checks if the given executed operation succeeded.
+	 */
+	private static boolean succeeded(Future<?> operation)
+	{
+		try
+		{
+			operation.get();
+			return true;
+		}
+		catch (ExecutionException | CancellationException e)
+		{
+			return false;
+		}
+		catch (InterruptedException e)
+		{
+			// cannot happen, the operation is done
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+}
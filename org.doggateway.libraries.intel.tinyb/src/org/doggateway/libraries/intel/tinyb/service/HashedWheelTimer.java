@@ -0,0 +1,250 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timer wheel, handling any number of timeouts with a single
+ * periodic task. Timeouts are hashed in a fixed number of buckets according
+ * to their deadline, and every tick only the bucket under the wheel cursor is
+ * scanned; scheduling and cancelling a timeout are O(1) operations which do
+ * not allocate, as timeouts are intrusive list nodes.
+ * <p>
+ * Deadlines are rounded up to the tick duration, therefore the timer is
+ * suited to coarse-grained timeouts, e.g., liveness checks.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class HashedWheelTimer
+{
+	/**
+	 * A timeout handled by the wheel, to be extended by the objects needing
+	 * timeouts.
+	 */
+	abstract static class Timeout
+	{
+		// the bucket holding the timeout, -1 if not scheduled
+		private int bucket = -1;
+
+		// the number of full wheel rounds still to wait
+		private long rounds;
+
+		// the bucket list links
+		private Timeout previous;
+		private Timeout next;
+
+		/**
+		 * Called, outside of the timer lock, when the timeout expires.
+		 * 
+		 * @param now
+		 *            The expiration time, in milliseconds since the epoch.
+		 */
+		abstract void expired(long now);
+	}
+
+	// the tick duration, in milliseconds
+	private final long tickMillis;
+
+	// the bucket index mask
+	private final int mask;
+
+	// the bucket list heads
+	private final Timeout[] buckets;
+
+	// the executor running the ticks
+	private final ScheduledExecutorService executor;
+
+	// the expired timeouts, reused at every tick
+	private final List<Timeout> expired;
+
+	// the current bucket
+	private int cursor;
+
+	// the time of the last processed tick
+	private long lastTick;
+
+	// the periodic tick, null until the first timeout is scheduled
+	private ScheduledFuture<?> ticker;
+
+	/**
+	 * Creates a new wheel.
+	 * 
+	 * @param tickMillis
+	 *            The tick duration, in milliseconds.
+	 * @param wheelSize
+	 *            The number of buckets, rounded up to a power of 2.
+	 * @param executor
+	 *            The executor running the ticks.
+	 */
+	HashedWheelTimer(long tickMillis, int wheelSize,
+			ScheduledExecutorService executor)
+	{
+		int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+
+		this.tickMillis = tickMillis;
+		this.mask = size - 1;
+		this.buckets = new Timeout[size];
+		this.executor = executor;
+		this.expired = new ArrayList<>();
+	}
+
+	/**
+	 * Schedules the given timeout at the given deadline, re-scheduling it if
+	 * already scheduled.
+	 * 
+	 * @param timeout
+	 *            The timeout to schedule.
+	 * @param deadline
+	 *            The deadline, in milliseconds since the epoch.
+	 */
+	synchronized void schedule(Timeout timeout, long deadline)
+	{
+		// start ticking at the first timeout
+		if (this.ticker == null)
+			this.start();
+
+		this.unlink(timeout);
+
+		// the number of ticks to wait, at least one
+		long ticks = Math.max(1,
+				(deadline - this.lastTick + this.tickMillis - 1)
+						/ this.tickMillis);
+
+		timeout.bucket = (int) ((this.cursor + ticks) & this.mask);
+		timeout.rounds = (ticks - 1) / this.buckets.length;
+
+		// push on the bucket list
+		timeout.next = this.buckets[timeout.bucket];
+		if (timeout.next != null)
+			timeout.next.previous = timeout;
+		this.buckets[timeout.bucket] = timeout;
+	}
+
+	/**
+	 * Cancels the given timeout, if scheduled.
+	 * 
+	 * @param timeout
+	 *            The timeout to cancel.
+	 */
+	synchronized void cancel(Timeout timeout)
+	{
+		this.unlink(timeout);
+	}
+
+	/**
+	 * Stops ticking, scheduled timeouts will not expire anymore.
+	 */
+	synchronized void stop()
+	{
+		if (this.ticker != null)
+		{
+			this.ticker.cancel(false);
+			this.ticker = null;
+		}
+	}
+
+	/**
+	 * Starts the periodic tick.
+	 */
+	private void start()
+	{
+		this.lastTick = System.currentTimeMillis();
+		this.ticker = this.executor.scheduleAtFixedRate(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				HashedWheelTimer.this.tick();
+			}
+		}, this.tickMillis, this.tickMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Advances the wheel up to the current time, expiring the timeouts found
+	 * under the cursor.
+	 */
+	private void tick()
+	{
+		long now = System.currentTimeMillis();
+
+		synchronized (this)
+		{
+			// catch up with delayed ticks, if any
+			while (this.lastTick + this.tickMillis <= now)
+			{
+				this.lastTick += this.tickMillis;
+				this.cursor = (this.cursor + 1) & this.mask;
+
+				Timeout timeout = this.buckets[this.cursor];
+				while (timeout != null)
+				{
+					Timeout next = timeout.next;
+					if (timeout.rounds > 0)
+						timeout.rounds--;
+					else
+					{
+						this.unlink(timeout);
+						this.expired.add(timeout);
+					}
+					timeout = next;
+				}
+			}
+		}
+
+		// run the callbacks outside of the lock, they may re-schedule
+		for (int i = 0; i < this.expired.size(); i++)
+		{
+			try
+			{
+				this.expired.get(i).expired(now);
+			}
+			catch (RuntimeException e)
+			{
+				// a faulty timeout shall not stop the wheel
+			}
+		}
+		this.expired.clear();
+	}
+
+	/**
+	 * Removes the given timeout from its bucket, if any.
+	 */
+	private void unlink(Timeout timeout)
+	{
+		if (timeout.bucket < 0)
+			return;
+
+		if (timeout.previous != null)
+			timeout.previous.next = timeout.next;
+		else
+			this.buckets[timeout.bucket] = timeout.next;
+
+		if (timeout.next != null)
+			timeout.next.previous = timeout.previous;
+
+		timeout.previous = null;
+		timeout.next = null;
+		timeout.bucket = -1;
+	}
+}
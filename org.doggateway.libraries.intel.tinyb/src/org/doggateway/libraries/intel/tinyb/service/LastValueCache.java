@@ -0,0 +1,125 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps the latest value notified by every subscribed characteristic, so that
+ * any number of readers can get it without GATT traffic and without locking.
+ * Each characteristic holds an immutable {@link CachedValue} which is
+ * atomically swapped at every notification: readers just perform a volatile
+ * read, and the single writer (the thread delivering the notifications of the
+ * characteristic) never waits for them.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class LastValueCache implements NotificationStage
+{
+	/**
+	 * The cache slot of a single characteristic.
+	 */
+	private static class Slot
+	{
+		// the current snapshot, null until the first notification
+		volatile CachedValue current;
+	}
+
+	// the cache slots, indexed by channel key
+	private final ConcurrentHashMap<String, Slot> slots;
+
+	/**
+	 * Creates an empty cache.
+	 */
+	LastValueCache()
+	{
+		this.slots = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Provides the latest value notified by the given characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @return The latest value, or null if the characteristic has never
+	 *         notified any value.
+	 */
+	CachedValue get(String deviceAddress, String uuid)
+	{
+		Slot slot = this.slots
+				.get(NotificationChannel.keyOf(deviceAddress, uuid));
+		return (slot != null) ? slot.current : null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelOpened(NotificationChannel channel)
+	{
+		this.slots.putIfAbsent(channel.getKey(), new Slot());
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelClosed(NotificationChannel channel)
+	{
+		// keep the slot: the last value stays available, with its
+		// timestamp, and sequence numbers keep growing if the characteristic
+		// is subscribed again
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		Slot slot = this.slots.get(channel.getKey());
+		if (slot != null)
+		{
+			// notifications of a characteristic come from a single thread,
+			// therefore no compare-and-set is needed on the sequence
+			CachedValue previous = slot.current;
+			long sequence = (previous != null) ? previous.getSequence() + 1
+					: 1;
+
+			// copy the value, as listeners may modify the shared array
+			slot.current = new CachedValue(value.clone(), sequence, timestamp);
+		}
+		return true;
+	}
+}
@@ -0,0 +1,154 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with power-of-2 buckets: bucket <i>i</i>
+ * counts the latencies between 2<sup>i</sup> (inclusive) and
+ * 2<sup>i+1</sup> (exclusive) nanoseconds, bucket 0 also counting null
+ * latencies. Recording never allocates, percentiles are therefore
+ * approximated by the upper bound of the bucket holding them.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class LatencyHistogram
+{
+	// the number of buckets
+	public static final int BUCKETS = 64;
+
+	// the bucket counts
+	private final AtomicLongArray buckets;
+
+	// the number of recorded latencies, their sum and maximum
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+
+	/**
+	 * Creates an empty histogram.
+	 */
+	LatencyHistogram()
+	{
+		this.buckets = new AtomicLongArray(LatencyHistogram.BUCKETS);
+		this.count = new AtomicLong();
+		this.total = new AtomicLong();
+		this.max = new AtomicLong();
+	}
+
+	/**
+	 * Records a latency.
+	 * 
+	 * @param nanos
+	 *            The latency, in nanoseconds.
+	 */
+	void record(long nanos)
+	{
+		long value = Math.max(0, nanos);
+
+		this.buckets.incrementAndGet(
+				63 - Long.numberOfLeadingZeros(Math.max(1, value)));
+		this.count.incrementAndGet();
+		this.total.addAndGet(value);
+
+		long current = this.max.get();
+		while ((value > current) && !this.max.compareAndSet(current, value))
+			current = this.max.get();
+	}
+
+	/**
+	 * @return the number of recorded latencies
+	 */
+	public long getCount()
+	{
+		return this.count.get();
+	}
+
+	/**
+	 * Provides the count of the given bucket.
+	 * 
+	 * @param bucket
+	 *            The bucket index, between 0 and {@link #BUCKETS} - 1.
+	 * @return The number of latencies between 2<sup>bucket</sup> and
+	 *         2<sup>bucket+1</sup> nanoseconds.
+	 */
+	public long getBucketCount(int bucket)
+	{
+		return this.buckets.get(bucket);
+	}
+
+	/**
+	 * @return the mean latency, in nanoseconds
+	 */
+	public double getMeanNanos()
+	{
+		long n = this.count.get();
+		return (n > 0) ? (double) this.total.get() / n : 0;
+	}
+
+	/**
+	 * @return the maximum latency, in nanoseconds
+	 */
+	public long getMaxNanos()
+	{
+		return this.max.get();
+	}
+
+	/**
+	 * Approximates the given latency percentile.
+	 * 
+	 * @param percentile
+	 *            The percentile, between 0 and 100.
+	 * @return The upper bound of the bucket holding the percentile, in
+	 *         nanoseconds, 0 if no latency has been recorded.
+	 */
+	public long getPercentileNanos(double percentile)
+	{
+		long n = 0;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+			n += this.buckets.get(i);
+
+		long rank = (long) Math.ceil(n * percentile / 100.0);
+		long seen = 0;
+		for (int i = 0; i < LatencyHistogram.BUCKETS; i++)
+		{
+			seen += this.buckets.get(i);
+			if ((seen >= rank) && (seen > 0))
+				return (i < 62) ? (2L << i) - 1 : Long.MAX_VALUE;
+		}
+		return 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.lang.Object#toString()
+	 */
+	@Override
+	public String toString()
+	{
+		return String.format(
+				"count=%d mean=%.1fus p50<%.1fus p99<%.1fus max=%.1fus",
+				this.getCount(), this.getMeanNanos() / 1e3,
+				this.getPercentileNanos(50) / 1e3,
+				this.getPercentileNanos(99) / 1e3, this.getMaxNanos() / 1e3);
+	}
+}
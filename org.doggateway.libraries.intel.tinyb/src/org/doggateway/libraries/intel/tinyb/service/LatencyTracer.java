@@ -0,0 +1,340 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures where notifications spend their time inside the service: the
+ * latency of every dispatcher stage, of the delivery filter, of the delivery
+ * to listeners and the total time since the native callback fired are
+ * recorded in {@link LatencyHistogram}s. In addition, one notification every
+ * given number is traced in full, in a fixed-size ring of trace records
+ * which can be dumped on demand.
+ * <p>
+ * Trace records are written without locking, a dump taken under load may
+ * therefore include a record being overwritten.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class LatencyTracer
+{
+	// the histogram names not related to stages
+	static final String FILTER = "filter";
+	static final String DELIVERY = "delivery";
+	static final String TOTAL = "total";
+
+	// the maximum number of stages detailed in trace records
+	static final int MAX_TRACED_STAGES = 16;
+
+	/**
+	 * The latency histogram of a single stage instance.
+	 */
+	private static class StageLatency
+	{
+		// the stage index when first recorded
+		final int index;
+
+		// the stage name, made of its index and class name
+		final String name;
+
+		// the latency histogram
+		final LatencyHistogram histogram;
+
+		StageLatency(int index, NotificationStage stage)
+		{
+			this.index = index;
+			this.name = LatencyTracer.nameOf(index, stage);
+			this.histogram = new LatencyHistogram();
+		}
+	}
+
+	// the stage histograms, indexed by stage instance
+	private final ConcurrentHashMap<NotificationStage, StageLatency> stageHistograms;
+
+	// the filter, delivery and total histograms
+	private final LatencyHistogram filter;
+	private final LatencyHistogram delivery;
+	private final LatencyHistogram total;
+
+	// a notification every sampleEvery is traced, 0 to disable traces
+	private final int sampleEvery;
+
+	// the number of notifications seen so far
+	private final AtomicLong notifications;
+
+	// the trace records, as columns
+	private final String[] traceKeys;
+	private final long[] traceTimestamps;
+	private final long[] traceReceived;
+	private final NotificationStage[][] traceStages;
+	private final long[][] traceStageNanos;
+	private final long[] traceFilterNanos;
+	private final long[] traceDeliveryNanos;
+	private final int[] traceListeners;
+	private final long[] traceTotalNanos;
+
+	/**
+	 * Creates a new tracer.
+	 * 
+	 * @param sampleEvery
+	 *            The sampling period of trace records, e.g., 100 to trace a
+	 *            notification every 100; non-positive to disable trace
+	 *            records.
+	 * @param traceCapacity
+	 *            The number of trace records kept.
+	 */
+	LatencyTracer(int sampleEvery, int traceCapacity)
+	{
+		int capacity = (sampleEvery > 0) ? Math.max(1, traceCapacity) : 0;
+
+		this.stageHistograms = new ConcurrentHashMap<>();
+		this.filter = new LatencyHistogram();
+		this.delivery = new LatencyHistogram();
+		this.total = new LatencyHistogram();
+		this.sampleEvery = Math.max(0, sampleEvery);
+		this.notifications = new AtomicLong();
+
+		this.traceKeys = new String[capacity];
+		this.traceTimestamps = new long[capacity];
+		this.traceReceived = new long[capacity];
+		this.traceStages = new NotificationStage[capacity][];
+		this.traceStageNanos = new long[capacity][LatencyTracer.MAX_TRACED_STAGES];
+		this.traceFilterNanos = new long[capacity];
+		this.traceDeliveryNanos = new long[capacity];
+		this.traceListeners = new int[capacity];
+		this.traceTotalNanos = new long[capacity];
+	}
+
+	/**
+	 * Starts tracing a notification.
+	 * 
+	 * @param channel
+	 *            The channel receiving the notification.
+	 * @param timestamp
+	 *            The reception time, in milliseconds since the epoch.
+	 * @param receivedNanos
+	 *            The {@link System#nanoTime()} at which the native callback
+	 *            fired.
+	 * @param stages
+	 *            The stages run on the notification.
+	 * @return The trace record of the notification, -1 if not sampled.
+	 */
+	int begin(NotificationChannel channel, long timestamp, long receivedNanos,
+			NotificationStage[] stages)
+	{
+		long n = this.notifications.incrementAndGet();
+		if ((this.sampleEvery == 0) || (n % this.sampleEvery != 0))
+			return -1;
+
+		int record = (int) ((n / this.sampleEvery) % this.traceKeys.length);
+		this.traceKeys[record] = channel.getKey();
+		this.traceTimestamps[record] = timestamp;
+		this.traceReceived[record] = receivedNanos;
+		this.traceStages[record] = stages;
+		Arrays.fill(this.traceStageNanos[record], -1);
+		this.traceFilterNanos[record] = -1;
+		this.traceDeliveryNanos[record] = -1;
+		this.traceListeners[record] = 0;
+		this.traceTotalNanos[record] = -1;
+		return record;
+	}
+
+	/**
+	 * Records the latency of a stage.
+	 * 
+	 * @param record
+	 *            The trace record, -1 if not sampled.
+	 * @param index
+	 *            The stage index.
+	 * @param stage
+	 *            The stage.
+	 * @param start
+	 *            The time at which the stage started, in nanoseconds.
+	 * @return The current time, in nanoseconds.
+	 */
+	long stage(int record, int index, NotificationStage stage, long start)
+	{
+		long now = System.nanoTime();
+
+		StageLatency latency = this.stageHistograms.get(stage);
+		if (latency == null)
+		{
+			this.stageHistograms.putIfAbsent(stage,
+					new StageLatency(index, stage));
+			latency = this.stageHistograms.get(stage);
+		}
+		latency.histogram.record(now - start);
+
+		if ((record >= 0) && (index < LatencyTracer.MAX_TRACED_STAGES))
+			this.traceStageNanos[record][index] = now - start;
+		return now;
+	}
+
+	/**
+	 * Records the latency of the delivery filter.
+	 * 
+	 * @param record
+	 *            The trace record, -1 if not sampled.
+	 * @param start
+	 *            The time at which the filter started, in nanoseconds.
+	 * @return The current time, in nanoseconds.
+	 */
+	long filter(int record, long start)
+	{
+		long now = System.nanoTime();
+		this.filter.record(now - start);
+		if (record >= 0)
+			this.traceFilterNanos[record] = now - start;
+		return now;
+	}
+
+	/**
+	 * Records the end of the processing of a notification.
+	 * 
+	 * @param record
+	 *            The trace record, -1 if not sampled.
+	 * @param receivedNanos
+	 *            The time at which the native callback fired.
+	 * @param deliveryStart
+	 *            The time at which the delivery to listeners started, -1 if
+	 *            the notification has been suppressed.
+	 * @param listeners
+	 *            The number of listeners to which the notification has been
+	 *            delivered.
+	 */
+	void end(int record, long receivedNanos, long deliveryStart,
+			int listeners)
+	{
+		long now = System.nanoTime();
+		if (deliveryStart >= 0)
+			this.delivery.record(now - deliveryStart);
+		this.total.record(now - receivedNanos);
+
+		if (record >= 0)
+		{
+			if (deliveryStart >= 0)
+				this.traceDeliveryNanos[record] = now - deliveryStart;
+			this.traceListeners[record] = listeners;
+			this.traceTotalNanos[record] = now - receivedNanos;
+		}
+	}
+
+	/**
+	 * @return the histograms, indexed by name: one per stage instance, in
+	 *         pipeline order (named after the stage index and class, e.g.,
+	 *         "2:TimeSeriesStore", and suffixed with "#n" if the name is
+	 *         taken by a stage removed from the same index), followed by the
+	 *         filter, delivery and total ones
+	 */
+	Map<String, LatencyHistogram> getHistograms()
+	{
+		List<StageLatency> stages = new ArrayList<>(
+				this.stageHistograms.values());
+		Collections.sort(stages, new Comparator<StageLatency>()
+		{
+			@Override
+			public int compare(StageLatency first, StageLatency second)
+			{
+				return Integer.compare(first.index, second.index);
+			}
+		});
+
+		Map<String, LatencyHistogram> histograms = new LinkedHashMap<>();
+		for (StageLatency stage : stages)
+		{
+			String name = stage.name;
+			for (int n = 2; histograms.containsKey(name); n++)
+				name = stage.name + "#" + n;
+			histograms.put(name, stage.histogram);
+		}
+		histograms.put(LatencyTracer.FILTER, this.filter);
+		histograms.put(LatencyTracer.DELIVERY, this.delivery);
+		histograms.put(LatencyTracer.TOTAL, this.total);
+		return histograms;
+	}
+
+	/**
+	 * Writes the trace records, oldest first, one per line.
+	 * 
+	 * @param out
+	 *            The destination.
+	 * @throws IOException
+	 *             If the destination cannot be written.
+	 */
+	void dump(Appendable out) throws IOException
+	{
+		int capacity = this.traceKeys.length;
+		if (capacity == 0)
+			return;
+
+		long last = this.notifications.get() / this.sampleEvery;
+		for (long n = Math.max(1, last - capacity + 1); n <= last; n++)
+		{
+			int record = (int) (n % capacity);
+			if (this.traceKeys[record] == null)
+				continue;
+
+			out.append(String.format("%tT.%<tL %s total=%.1fus",
+					this.traceTimestamps[record], this.traceKeys[record],
+					this.traceTotalNanos[record] / 1e3));
+
+			NotificationStage[] stages = this.traceStages[record];
+			for (int i = 0; (i < stages.length)
+					&& (i < LatencyTracer.MAX_TRACED_STAGES)
+					&& (this.traceStageNanos[record][i] >= 0); i++)
+				out.append(String.format(" %s=%.1fus",
+						LatencyTracer.nameOf(i, stages[i]),
+						this.traceStageNanos[record][i] / 1e3));
+
+			if (this.traceFilterNanos[record] >= 0)
+				out.append(String.format(" %s=%.1fus", LatencyTracer.FILTER,
+						this.traceFilterNanos[record] / 1e3));
+			if (this.traceDeliveryNanos[record] >= 0)
+				out.append(String.format(" %s=%.1fus (%d listeners)",
+						LatencyTracer.DELIVERY,
+						this.traceDeliveryNanos[record] / 1e3,
+						this.traceListeners[record]));
+			else
+				out.append(" suppressed");
+			out.append('\n');
+		}
+	}
+
+	/**
+	 * Names a stage after its index and class, anonymous classes having no
+	 * simple name.
+	 */
+	private static String nameOf(int index, NotificationStage stage)
+	{
+		String className = stage.getClass().getSimpleName();
+		if (className.isEmpty())
+			className = stage.getClass().getName();
+		return index + ":" + className;
+	}
+}
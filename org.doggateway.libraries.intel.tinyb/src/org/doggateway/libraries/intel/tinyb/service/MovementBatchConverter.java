@@ -0,0 +1,149 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Converts, in a single pass, a packed buffer of SensorTag movement payloads
+ * (18 bytes each: gyroscope, accelerometer and magnetometer x, y, z as little
+ * endian signed 16 bit integers) into scaled float columns, e.g., to
+ * re-process captured movement data. Scales are resolved once, when the
+ * converter is created, and the conversion loop is unrolled over the nine
+ * fields of a sample, without any per-value branch; for single payloads see
+ * {@link SensorTagDecoders#movement(int)}.
+ * <p>
+ * Output columns are, in order: gyroscope x, y, z in deg/s, accelerometer x,
+ * y, z in G and magnetometer x, y, z in uT. Converters are immutable and can
+ * be shared among threads.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class MovementBatchConverter
+{
+	// the size of a movement payload, in bytes
+	public static final int SAMPLE_SIZE = 18;
+
+	// the number of output columns
+	public static final int COLUMN_COUNT = 9;
+
+	// the accelerometer scale, in G per LSB
+	private final float accScale;
+
+	/**
+	 * Creates a converter for the given accelerometer range.
+	 * 
+	 * @param accelerometerRange
+	 *            The accelerometer range configuration, as written in the
+	 *            second byte of the movement configuration characteristic
+	 *            (0: 2G, 1: 4G, 2: 8G, 3: 16G).
+	 */
+	public MovementBatchConverter(int accelerometerRange)
+	{
+		this.accScale = SensorTagDecoders
+				.accelerometerScale(accelerometerRange);
+	}
+
+	/**
+	 * Allocates the output columns for the given number of samples.
+	 * 
+	 * @param samples
+	 *            The number of samples.
+	 * @return The columns, to be reused across conversions.
+	 */
+	public static float[][] newColumns(int samples)
+	{
+		return new float[MovementBatchConverter.COLUMN_COUNT][samples];
+	}
+
+	/**
+	 * Converts the given packed payloads.
+	 * 
+	 * @param packed
+	 *            The buffer holding contiguous movement payloads.
+	 * @param offset
+	 *            The offset of the first payload in the buffer.
+	 * @param samples
+	 *            The number of payloads to convert.
+	 * @param columns
+	 *            The {@link #COLUMN_COUNT} output columns.
+	 * @param columnOffset
+	 *            The index, in every column, at which the first sample shall
+	 *            be stored.
+	 * @return The number of converted samples, limited by the available
+	 *         payloads and by the column lengths.
+	 */
+	public int convert(byte[] packed, int offset, int samples,
+			float[][] columns, int columnOffset)
+	{
+		if (columns.length < MovementBatchConverter.COLUMN_COUNT)
+			throw new IllegalArgumentException(
+					"Expected " + MovementBatchConverter.COLUMN_COUNT
+							+ " columns, found " + columns.length);
+
+		// the columns, as locals to avoid reloading them at every sample
+		float[] gx = columns[0];
+		float[] gy = columns[1];
+		float[] gz = columns[2];
+		float[] ax = columns[3];
+		float[] ay = columns[4];
+		float[] az = columns[5];
+		float[] mx = columns[6];
+		float[] my = columns[7];
+		float[] mz = columns[8];
+
+		// the number of samples that can actually be converted
+		int count = Math.min(samples,
+				(packed.length - offset) / MovementBatchConverter.SAMPLE_SIZE);
+		for (float[] column : columns)
+			count = Math.min(count, column.length - columnOffset);
+		if (count <= 0)
+			return 0;
+
+		// the scales
+		float gyroScale = SensorTagDecoders.GYRO_SCALE;
+		float accScale = this.accScale;
+		float magScale = SensorTagDecoders.MAGNETOMETER_SCALE;
+
+		int p = offset;
+		int end = columnOffset + count;
+		for (int i = columnOffset; i < end; i++)
+		{
+			gx[i] = ((short) ((packed[p] & 0xff) | (packed[p + 1] << 8)))
+					* gyroScale;
+			gy[i] = ((short) ((packed[p + 2] & 0xff) | (packed[p + 3] << 8)))
+					* gyroScale;
+			gz[i] = ((short) ((packed[p + 4] & 0xff) | (packed[p + 5] << 8)))
+					* gyroScale;
+			ax[i] = ((short) ((packed[p + 6] & 0xff) | (packed[p + 7] << 8)))
+					* accScale;
+			ay[i] = ((short) ((packed[p + 8] & 0xff) | (packed[p + 9] << 8)))
+					* accScale;
+			az[i] = ((short) ((packed[p + 10] & 0xff) | (packed[p + 11] << 8)))
+					* accScale;
+			mx[i] = ((short) ((packed[p + 12] & 0xff) | (packed[p + 13] << 8)))
+					* magScale;
+			my[i] = ((short) ((packed[p + 14] & 0xff) | (packed[p + 15] << 8)))
+					* magScale;
+			mz[i] = ((short) ((packed[p + 16] & 0xff) | (packed[p + 17] << 8)))
+					* magScale;
+			p += MovementBatchConverter.SAMPLE_SIZE;
+		}
+
+		return count;
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.Arrays;
+
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothNotification;
+
+/**
+ * The notification stream of a single characteristic. The channel is the only
+ * native subscriber of the characteristic: it receives the notified values,
+ * runs them through the dispatcher stages and fans them out to all the
+ * listeners registered through the {@link BluetoothService}.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class NotificationChannel implements BluetoothNotification<byte[]>
+{
+	// the empty listener array
+	private static final BluetoothNotification<?>[] NO_LISTENERS = new BluetoothNotification<?>[0];
+
+	// the characteristic delivering the notifications
+	private final BluetoothGattCharacteristic characteristic;
+
+	// the MAC address of the device hosting the characteristic
+	private final String deviceAddress;
+
+	// the characteristic UUID
+	private final String uuid;
+
+	// the channel key, unique among all the open channels
+	private final String key;
+
+	// the dispatcher owning this channel
+	private final NotificationDispatcher dispatcher;
+
+	// the registered listeners, copied on write to avoid allocating iterators
+	// on every notification
+	private volatile BluetoothNotification<?>[] listeners;
+
+	/**
+	 * Creates a new channel for the given characteristic.
+	 * 
+	 * @param characteristic
+	 *            The characteristic delivering the notifications.
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @param dispatcher
+	 *            The dispatcher owning the channel.
+	 */
+	NotificationChannel(BluetoothGattCharacteristic characteristic,
+			String deviceAddress, String uuid,
+			NotificationDispatcher dispatcher)
+	{
+		this.characteristic = characteristic;
+		this.deviceAddress = deviceAddress;
+		this.uuid = uuid;
+		this.key = NotificationChannel.keyOf(deviceAddress, uuid);
+		this.dispatcher = dispatcher;
+		this.listeners = NotificationChannel.NO_LISTENERS;
+	}
+
+	/**
+	 * Builds the key identifying the channel of the given characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @return The channel key.
+	 */
+	static String keyOf(String deviceAddress, String uuid)
+	{
+		return deviceAddress + "/" + uuid;
+	}
+
+	/**
+	 * @return the characteristic delivering the notifications
+	 */
+	BluetoothGattCharacteristic getCharacteristic()
+	{
+		return this.characteristic;
+	}
+
+	/**
+	 * @return the MAC address of the device hosting the characteristic
+	 */
+	String getDeviceAddress()
+	{
+		return this.deviceAddress;
+	}
+
+	/**
+	 * @return the characteristic UUID
+	 */
+	String getUUID()
+	{
+		return this.uuid;
+	}
+
+	/**
+	 * @return the channel key
+	 */
+	String getKey()
+	{
+		return this.key;
+	}
+
+	/**
+	 * Adds a listener to the channel
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	synchronized void addListener(BluetoothNotification<byte[]> listener)
+	{
+		BluetoothNotification<?>[] current = this.listeners;
+		BluetoothNotification<?>[] updated = Arrays.copyOf(current,
+				current.length + 1);
+		updated[current.length] = listener;
+		this.listeners = updated;
+	}
+
+	/**
+	 * Removes a listener from the channel
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 * @return The number of listeners still registered.
+	 */
+	synchronized int removeListener(BluetoothNotification<byte[]> listener)
+	{
+		BluetoothNotification<?>[] current = this.listeners;
+		for (int i = 0; i < current.length; i++)
+		{
+			if (current[i] == listener)
+			{
+				BluetoothNotification<?>[] updated = new BluetoothNotification<?>[current.length
+						- 1];
+				System.arraycopy(current, 0, updated, 0, i);
+				System.arraycopy(current, i + 1, updated, i,
+						current.length - i - 1);
+				this.listeners = updated;
+				break;
+			}
+		}
+		return this.listeners.length;
+	}
+
+	/**
+	 * @return the number of registered listeners
+	 */
+	int getListenerCount()
+	{
+		return this.listeners.length;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see tinyb.BluetoothNotification#run(java.lang.Object)
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public void run(byte[] value)
+	{
+		// the native callback time and the reception time
+		long receivedNanos = System.nanoTime();
+		long timestamp = System.currentTimeMillis();
+
+		// the tracer, null if tracing is disabled
+		LatencyTracer tracer = this.dispatcher.getTracer();
+
+		// run the notification through all stages, stop if suppressed
+		NotificationStage[] stages = this.dispatcher.getStages();
+		int record = (tracer != null)
+				? tracer.begin(this, timestamp, receivedNanos, stages) : -1;
+		long mark = receivedNanos;
+		for (int i = 0; i < stages.length; i++)
+		{
+			boolean passed = this.process(stages[i], value, timestamp);
+			if (tracer != null)
+				mark = tracer.stage(record, i, stages[i], mark);
+			if (!passed)
+			{
+				if (tracer != null)
+					tracer.end(record, receivedNanos, -1, 0);
+				return;
+			}
+		}
+
+		// let the delivery filter spare listeners, if needed
+		NotificationStage filter = this.dispatcher.getDeliveryFilter();
+		if (filter != null)
+		{
+			boolean passed = this.process(filter, value, timestamp);
+			if (tracer != null)
+				mark = tracer.filter(record, mark);
+			if (!passed)
+			{
+				if (tracer != null)
+					tracer.end(record, receivedNanos, -1, 0);
+				return;
+			}
+		}
+
+		// deliver the notification to all listeners
+		BluetoothNotification<?>[] current = this.listeners;
+		for (int i = 0; i < current.length; i++)
+		{
+			try
+			{
+				if (current[i] instanceof TracedNotification)
+					((TracedNotification) current[i]).run(value,
+							receivedNanos);
+				else
+					((BluetoothNotification<byte[]>) current[i]).run(value);
+			}
+			catch (RuntimeException e)
+			{
+				// a faulty listener shall not prevent delivery to the others
+			}
+		}
+
+		if (tracer != null)
+			tracer.end(record, receivedNanos, mark, current.length);
+	}
+
+	/**
+	 * Runs the notification through the given stage, guarding against faulty
+	 * stages, e.g., running a client decoder on a malformed payload: a
+	 * failing stage lets the notification pass, not to stop the delivery to
+	 * listeners and the latency recording.
+	 * 
+	 * @return true if the notification passed the stage, false if it has
+	 *         been suppressed.
+	 */
+	private boolean process(NotificationStage stage, byte[] value,
+			long timestamp)
+	{
+		try
+		{
+			return stage.process(this, value, timestamp);
+		}
+		catch (RuntimeException e)
+		{
+			// a faulty stage shall not suppress the notification
+			return true;
+		}
+	}
+}
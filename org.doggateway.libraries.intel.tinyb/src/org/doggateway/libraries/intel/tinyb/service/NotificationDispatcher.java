@@ -0,0 +1,299 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothNotification;
+
+/**
+ * Mediates all the value notifications handled by the service: every
+ * characteristic is natively subscribed only once, by a
+ * {@link NotificationChannel}, and notified values are run through an ordered
+ * set of {@link NotificationStage}s before being delivered to the listeners of
+ * all client bundles. A single delivery filter, run after all the stages,
+ * may finally suppress the delivery to listeners without hiding the
+ * notification from any stage.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class NotificationDispatcher
+{
+	// the open channels, indexed by channel key
+	private final ConcurrentHashMap<String, NotificationChannel> channels;
+
+	// the processing stages, copied on write to avoid allocating iterators on
+	// every notification
+	private volatile NotificationStage[] stages;
+
+	// the stage deciding whether notifications reach the listeners, null to
+	// deliver all notifications
+	private volatile NotificationStage deliveryFilter;
+
+	// the latency tracer, null if tracing is disabled
+	private volatile LatencyTracer tracer;
+
+	/**
+	 * Creates a dispatcher with no channels and no stages.
+	 */
+	NotificationDispatcher()
+	{
+		this.channels = new ConcurrentHashMap<>();
+		this.stages = new NotificationStage[0];
+	}
+
+	/**
+	 * Appends a stage to the processing pipeline, the stage is immediately
+	 * notified of all the currently open channels.
+	 * 
+	 * @param stage
+	 *            The stage to add.
+	 */
+	synchronized void addStage(NotificationStage stage)
+	{
+		NotificationStage[] updated = Arrays.copyOf(this.stages,
+				this.stages.length + 1);
+		updated[this.stages.length] = stage;
+		this.stages = updated;
+
+		for (NotificationChannel channel : this.channels.values())
+			stage.channelOpened(channel);
+	}
+
+	/**
+	 * Removes a stage from the processing pipeline.
+	 * 
+	 * @param stage
+	 *            The stage to remove.
+	 */
+	synchronized void removeStage(NotificationStage stage)
+	{
+		List<NotificationStage> updated = new ArrayList<>(
+				Arrays.asList(this.stages));
+		if (updated.remove(stage))
+			this.stages = updated.toArray(new NotificationStage[0]);
+	}
+
+	/**
+	 * Sets the delivery filter, run after all the stages, regardless of the
+	 * order in which stages are added; the filter is immediately notified of
+	 * all the currently open channels.
+	 * 
+	 * @param filter
+	 *            The filter, null to deliver all notifications.
+	 */
+	synchronized void setDeliveryFilter(NotificationStage filter)
+	{
+		this.deliveryFilter = filter;
+
+		if (filter != null)
+		{
+			for (NotificationChannel channel : this.channels.values())
+				filter.channelOpened(channel);
+		}
+	}
+
+	/**
+	 * @return the delivery filter, null if none is set
+	 */
+	NotificationStage getDeliveryFilter()
+	{
+		return this.deliveryFilter;
+	}
+
+	/**
+	 * Sets the latency tracer.
+	 * 
+	 * @param tracer
+	 *            The tracer, null to disable tracing.
+	 */
+	void setTracer(LatencyTracer tracer)
+	{
+		this.tracer = tracer;
+	}
+
+	/**
+	 * @return the latency tracer, null if tracing is disabled
+	 */
+	LatencyTracer getTracer()
+	{
+		return this.tracer;
+	}
+
+	/**
+	 * @return the current processing stages
+	 */
+	NotificationStage[] getStages()
+	{
+		return this.stages;
+	}
+
+	/**
+	 * Provides the channel of the given characteristic, if open.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @return The channel, or null if no listener is subscribed to the
+	 *         characteristic.
+	 */
+	NotificationChannel getChannel(String deviceAddress, String uuid)
+	{
+		return this.channels.get(NotificationChannel.keyOf(deviceAddress, uuid));
+	}
+
+	/**
+	 * Provides the channel of the given characteristic, if open.
+	 * 
+	 * @param characteristic
+	 *            The characteristic.
+	 * @return The channel, or null if no listener is subscribed to the
+	 *         characteristic.
+	 */
+	NotificationChannel getChannel(BluetoothGattCharacteristic characteristic)
+	{
+		return this.getChannel(
+				characteristic.getService().getDevice().getAddress(),
+				characteristic.getUUID());
+	}
+
+	/**
+	 * @return a snapshot of the currently open channels
+	 */
+	List<NotificationChannel> getChannels()
+	{
+		return new ArrayList<>(this.channels.values());
+	}
+
+	/**
+	 * Subscribes the given listener to the value notifications of the given
+	 * characteristic, natively enabling notifications if this is the first
+	 * listener of the characteristic.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to subscribe to.
+	 * @param listener
+	 *            The listener to notify.
+	 * @throws tinyb.BluetoothException
+	 *             If notifications cannot be natively enabled, in which case
+	 *             the listener is not subscribed.
+	 */
+	synchronized void subscribe(BluetoothGattCharacteristic characteristic,
+			BluetoothNotification<byte[]> listener)
+	{
+		// the address of the device hosting the characteristic
+		String deviceAddress = characteristic.getService().getDevice()
+				.getAddress();
+
+		NotificationChannel channel = this.getChannel(deviceAddress,
+				characteristic.getUUID());
+
+		// open the channel, if needed
+		if (channel == null)
+		{
+			channel = new NotificationChannel(characteristic, deviceAddress,
+					characteristic.getUUID(), this);
+			this.channels.put(channel.getKey(), channel);
+
+			// let stages prepare their per-channel state before the first
+			// notification is received
+			for (NotificationStage stage : this.stages)
+				stage.channelOpened(channel);
+			if (this.deliveryFilter != null)
+				this.deliveryFilter.channelOpened(channel);
+
+			try
+			{
+				characteristic.enableValueNotifications(channel);
+			}
+			catch (RuntimeException e)
+			{
+				// do not keep a channel with no native subscription, later
+				// subscriptions shall try enabling notifications again
+				this.channels.remove(channel.getKey());
+				for (NotificationStage stage : this.stages)
+					stage.channelClosed(channel);
+				if (this.deliveryFilter != null)
+					this.deliveryFilter.channelClosed(channel);
+				throw e;
+			}
+		}
+
+		channel.addListener(listener);
+	}
+
+	/**
+	 * Un-subscribes the given listener from the value notifications of the
+	 * given characteristic, natively disabling notifications if this is the
+	 * last listener of the characteristic.
+	 * 
+	 * @param characteristic
+	 *            The characteristic to un-subscribe from.
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	synchronized void unsubscribe(BluetoothGattCharacteristic characteristic,
+			BluetoothNotification<byte[]> listener)
+	{
+		NotificationChannel channel = this.getChannel(characteristic);
+
+		// close the channel if no more listeners are registered
+		if ((channel != null) && (channel.removeListener(listener) == 0))
+			this.close(channel);
+	}
+
+	/**
+	 * Closes all the open channels, natively disabling notifications.
+	 */
+	synchronized void closeAll()
+	{
+		for (NotificationChannel channel : this.getChannels())
+			this.close(channel);
+	}
+
+	/**
+	 * Closes the given channel, natively disabling notifications.
+	 * 
+	 * @param channel
+	 *            The channel to close.
+	 */
+	private void close(NotificationChannel channel)
+	{
+		this.channels.remove(channel.getKey());
+
+		try
+		{
+			channel.getCharacteristic().disableValueNotifications();
+		}
+		catch (RuntimeException e)
+		{
+			// the device may already be gone, nothing else to do
+		}
+
+		for (NotificationStage stage : this.stages)
+			stage.channelClosed(channel);
+		if (this.deliveryFilter != null)
+			this.deliveryFilter.channelClosed(channel);
+	}
+}
@@ -0,0 +1,377 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Captures every raw notification handled by the service in a memory-mapped,
+ * fixed-size ring file, for later analysis or replay through a
+ * {@link NotificationJournalReader}. The file is split in segments which are
+ * overwritten in a circular fashion, the oldest first; records are appended
+ * on the notification thread with no per-record allocation.
+ * <p>
+ * File layout (all values little endian):
+ * <ul>
+ * <li>file header, {@link #FILE_HEADER_SIZE} bytes: magic
+ * {@link #FILE_MAGIC} (int), version (int), segment size (int), segment count
+ * (int), padding;</li>
+ * <li>segments, each starting with a {@link #SEGMENT_HEADER_SIZE} bytes
+ * header: magic {@link #SEGMENT_MAGIC} (int), padding (int), generation
+ * (long, growing at every segment switch, 0 for never written segments);</li>
+ * <li>records, each having a {@link #RECORD_HEADER_SIZE} bytes header: type
+ * (short), channel id (short), payload length (int), timestamp in
+ * milliseconds since the epoch (long), followed by the payload. The
+ * {@link #CHANNEL_RECORD} payload is the ASCII string
+ * <code>address/uuid</code> defining the channel id used by the subsequent
+ * {@link #NOTIFICATION_RECORD}s of the same segment, the latter carrying the
+ * raw notified value. A {@link #END_RECORD} type marks the end of the
+ * segment data.</li>
+ * </ul>
+ * Channel ids of closed channels are reused: as a reused id is defined again
+ * before its first notification, readers resolve ids in record order.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class NotificationJournal implements NotificationStage
+{
+	// the file format constants
+	static final int FILE_MAGIC = 0x444f474a;
+	static final int SEGMENT_MAGIC = 0x5345474d;
+	static final int VERSION = 1;
+	static final int FILE_HEADER_SIZE = 64;
+	static final int SEGMENT_HEADER_SIZE = 16;
+	static final int RECORD_HEADER_SIZE = 16;
+
+	// the record types
+	static final short END_RECORD = 0;
+	static final short CHANNEL_RECORD = 1;
+	static final short NOTIFICATION_RECORD = 2;
+
+	// the charset used for channel definitions
+	static final Charset ASCII = Charset.forName("US-ASCII");
+
+	/**
+	 * The journal-specific data of a notification channel.
+	 */
+	private static class JournalChannel
+	{
+		// the channel id
+		final short id;
+
+		// the channel key
+		final String key;
+
+		// the encoded channel definition
+		final byte[] definition;
+
+		// the generation of the last segment in which the channel has been
+		// defined
+		long definedIn;
+
+		JournalChannel(short id, String key)
+		{
+			this.id = id;
+			this.key = key;
+			this.definition = key.getBytes(NotificationJournal.ASCII);
+		}
+	}
+
+	// the journal file
+	private final RandomAccessFile file;
+
+	// the mapped journal file
+	private final MappedByteBuffer buffer;
+
+	// the size of a single segment, in bytes
+	private final int segmentSize;
+
+	// the number of segments
+	private final int segmentCount;
+
+	// the journal data of the open channels, indexed by channel key
+	private final ConcurrentHashMap<String, JournalChannel> channels;
+
+	// the next never used channel id
+	private short nextChannelId;
+
+	// the ids of the closed channels
+	private final ArrayDeque<Short> freeIds;
+
+	// the index of the current segment
+	private int segment;
+
+	// the generation of the current segment
+	private long generation;
+
+	// the write position in the whole file
+	private int position;
+
+	// the number of records dropped since they do not fit in a segment
+	private long dropped;
+
+	// the closed flag
+	private boolean closed;
+
+	/**
+	 * Creates a new journal, overwriting the given file.
+	 * 
+	 * @param journalFile
+	 *            The journal file.
+	 * @param segmentSize
+	 *            The size of a single segment, in bytes.
+	 * @param segmentCount
+	 *            The number of segments, at least 2.
+	 * @throws IOException
+	 *             If the file cannot be created or mapped.
+	 */
+	NotificationJournal(File journalFile, int segmentSize, int segmentCount)
+			throws IOException
+	{
+		// check the journal geometry
+		long size = NotificationJournal.FILE_HEADER_SIZE
+				+ ((long) segmentSize * segmentCount);
+		if ((segmentCount < 2)
+				|| (segmentSize < NotificationJournal.SEGMENT_HEADER_SIZE
+						+ NotificationJournal.RECORD_HEADER_SIZE + 2)
+				|| (size > Integer.MAX_VALUE))
+			throw new IllegalArgumentException("Invalid journal geometry: "
+					+ segmentCount + " segments of " + segmentSize + " bytes");
+
+		this.segmentSize = segmentSize;
+		this.segmentCount = segmentCount;
+		this.channels = new ConcurrentHashMap<>();
+		this.freeIds = new ArrayDeque<>();
+
+		// create and map the file, truncating any previous content
+		this.file = new RandomAccessFile(journalFile, "rw");
+		this.file.setLength(0);
+		this.file.setLength(size);
+		this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, size);
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		// write the file header
+		this.buffer.putInt(0, NotificationJournal.FILE_MAGIC);
+		this.buffer.putInt(4, NotificationJournal.VERSION);
+		this.buffer.putInt(8, segmentSize);
+		this.buffer.putInt(12, segmentCount);
+
+		// start from the first segment
+		this.segment = -1;
+		this.nextSegment();
+	}
+
+	/**
+	 * @return the number of records dropped since they do not fit in a segment
+	 */
+	synchronized long getDropped()
+	{
+		return this.dropped;
+	}
+
+	/**
+	 * Flushes the journal to disk and closes it, subsequent notifications are
+	 * ignored.
+	 */
+	synchronized void close()
+	{
+		if (!this.closed)
+		{
+			this.closed = true;
+			this.buffer.force();
+			try
+			{
+				this.file.close();
+			}
+			catch (IOException e)
+			{
+				// the mapping stays valid until garbage collected, nothing
+				// else to do
+			}
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public synchronized void channelOpened(NotificationChannel channel)
+	{
+		if (this.channels.containsKey(channel.getKey()))
+			return;
+
+		short id;
+		if (!this.freeIds.isEmpty())
+			id = this.freeIds.pollFirst();
+		else if (this.nextChannelId < Short.MAX_VALUE)
+			id = this.nextChannelId++;
+		else
+		{
+			// all the ids are in use, the channel is not captured
+			return;
+		}
+
+		this.channels.put(channel.getKey(),
+				new JournalChannel(id, channel.getKey()));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public synchronized void channelClosed(NotificationChannel channel)
+	{
+		// free the id, a channel opened again gets a new one
+		JournalChannel journalChannel = this.channels
+				.remove(channel.getKey());
+		if (journalChannel != null)
+			this.freeIds.addLast(journalChannel.id);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		JournalChannel journalChannel = this.channels.get(channel.getKey());
+		if (journalChannel != null)
+			this.append(journalChannel, value, timestamp);
+
+		// capturing never suppresses notifications
+		return true;
+	}
+
+	/**
+	 * Appends a notification record, preceded by the channel definition if
+	 * not yet written in the current segment.
+	 */
+	private synchronized void append(JournalChannel channel, byte[] value,
+			long timestamp)
+	{
+		// skip channels closed since the lookup, their id may have been
+		// reused
+		if ((this.closed) || (this.channels.get(channel.key) != channel))
+			return;
+
+		// the space needed by the notification record and by the channel
+		// definition
+		int recordSize = NotificationJournal.RECORD_HEADER_SIZE + value.length;
+		int definitionSize = NotificationJournal.RECORD_HEADER_SIZE
+				+ channel.definition.length;
+
+		// records not fitting in an empty segment, together with the channel
+		// definition and the end marker, can never be stored
+		if (recordSize + definitionSize + 2 > this.segmentSize
+				- NotificationJournal.SEGMENT_HEADER_SIZE)
+		{
+			this.dropped++;
+			return;
+		}
+
+		// move to the next segment if the record does not fit, leaving room
+		// for the end marker
+		int needed = (channel.definedIn != this.generation)
+				? recordSize + definitionSize : recordSize;
+		if (this.position + needed + 2 > this.segmentEnd())
+			this.nextSegment();
+
+		// define the channel in the current segment, if needed
+		if (channel.definedIn != this.generation)
+		{
+			this.writeRecord(NotificationJournal.CHANNEL_RECORD, channel.id,
+					channel.definition, timestamp);
+			channel.definedIn = this.generation;
+		}
+
+		this.writeRecord(NotificationJournal.NOTIFICATION_RECORD, channel.id,
+				value, timestamp);
+
+		// mark the end of the valid data
+		this.buffer.putShort(this.position, NotificationJournal.END_RECORD);
+	}
+
+	/**
+	 * Writes a single record at the current position.
+	 */
+	private void writeRecord(short type, short channelId, byte[] payload,
+			long timestamp)
+	{
+		this.buffer.putShort(this.position, type);
+		this.buffer.putShort(this.position + 2, channelId);
+		this.buffer.putInt(this.position + 4, payload.length);
+		this.buffer.putLong(this.position + 8, timestamp);
+		this.buffer.position(
+				this.position + NotificationJournal.RECORD_HEADER_SIZE);
+		this.buffer.put(payload);
+		this.position += NotificationJournal.RECORD_HEADER_SIZE
+				+ payload.length;
+	}
+
+	/**
+	 * Switches to the next segment, overwriting the oldest data.
+	 */
+	private void nextSegment()
+	{
+		this.segment = (this.segment + 1) % this.segmentCount;
+		this.generation++;
+
+		int start = NotificationJournal.FILE_HEADER_SIZE
+				+ (this.segment * this.segmentSize);
+
+		// invalidate the old segment content before updating the header
+		this.buffer.putShort(start + NotificationJournal.SEGMENT_HEADER_SIZE,
+				NotificationJournal.END_RECORD);
+		this.buffer.putInt(start, NotificationJournal.SEGMENT_MAGIC);
+		this.buffer.putLong(start + 8, this.generation);
+
+		this.position = start + NotificationJournal.SEGMENT_HEADER_SIZE;
+	}
+
+	/**
+	 * @return the end of the current segment, in the whole file
+	 */
+	private int segmentEnd()
+	{
+		return NotificationJournal.FILE_HEADER_SIZE
+				+ ((this.segment + 1) * this.segmentSize);
+	}
+}
@@ -0,0 +1,256 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import tinyb.BluetoothNotification;
+
+/**
+ * Replays the notifications captured by the service (see
+ * {@link BluetoothService#startCapture(File, int, int)}) through the same
+ * listener interface used for live notifications, either at the original
+ * speed, at an accelerated speed or as fast as possible. Besides incident
+ * analysis, replaying a capture provides a realistic load source for
+ * benchmarking notification consumers.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public class NotificationJournalReader
+{
+	// the journal file
+	private final RandomAccessFile file;
+
+	// the mapped journal
+	private final MappedByteBuffer buffer;
+
+	// the size of a single segment
+	private final int segmentSize;
+
+	// the number of segments
+	private final int segmentCount;
+
+	// the listeners, indexed by channel key
+	private final Map<String, List<BluetoothNotification<byte[]>>> listeners;
+
+	/**
+	 * Opens the given journal file for replay.
+	 * 
+	 * @param journalFile
+	 *            The journal file, written by the service capture.
+	 * @throws IOException
+	 *             If the file cannot be read or is not a valid journal.
+	 */
+	public NotificationJournalReader(File journalFile) throws IOException
+	{
+		this.file = new RandomAccessFile(journalFile, "r");
+		this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+				0, this.file.length());
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+		// check the file header
+		if ((this.buffer.capacity() < NotificationJournal.FILE_HEADER_SIZE)
+				|| (this.buffer.getInt(0) != NotificationJournal.FILE_MAGIC)
+				|| (this.buffer.getInt(4) != NotificationJournal.VERSION))
+		{
+			this.file.close();
+			throw new IOException(
+					"Not a valid notification journal: " + journalFile);
+		}
+
+		this.segmentSize = this.buffer.getInt(8);
+		this.segmentCount = this.buffer.getInt(12);
+		this.listeners = new HashMap<>();
+	}
+
+	/**
+	 * Registers a listener for the notifications captured from the given
+	 * characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The characteristic UUID.
+	 * @param listener
+	 *            The listener to which the captured notifications shall be
+	 *            delivered.
+	 */
+	public synchronized void addListener(String deviceAddress, String UUID,
+			BluetoothNotification<byte[]> listener)
+	{
+		String key = NotificationChannel.keyOf(deviceAddress, UUID);
+
+		List<BluetoothNotification<byte[]>> keyListeners = this.listeners
+				.get(key);
+		if (keyListeners == null)
+		{
+			keyListeners = new CopyOnWriteArrayList<>();
+			this.listeners.put(key, keyListeners);
+		}
+		keyListeners.add(listener);
+	}
+
+	/**
+	 * Replays all the captured notifications, oldest first, on the calling
+	 * thread.
+	 * 
+	 * @param speed
+	 *            The replay speed with respect to the original one, e.g., 1
+	 *            for the original speed, 10 for a ten times faster replay; a
+	 *            non-positive value replays as fast as possible.
+	 * @return The number of replayed notifications.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while pacing the
+	 *             replay.
+	 */
+	public long replay(double speed) throws InterruptedException
+	{
+		// the number of replayed notifications
+		long replayed = 0;
+
+		// the timestamp of the first record and the replay start time
+		long firstTimestamp = -1;
+		long start = System.currentTimeMillis();
+
+		// the view used for bulk payload reads
+		ByteBuffer view = this.buffer.duplicate();
+
+		for (int segmentStart : this.getSegmentsByGeneration())
+		{
+			// the channel definitions of the segment
+			Map<Short, List<BluetoothNotification<byte[]>>> segmentChannels = new HashMap<>();
+
+			int position = segmentStart + NotificationJournal.SEGMENT_HEADER_SIZE;
+			int end = segmentStart + this.segmentSize;
+
+			while (position + NotificationJournal.RECORD_HEADER_SIZE <= end)
+			{
+				short type = this.buffer.getShort(position);
+				short channelId = this.buffer.getShort(position + 2);
+				int length = this.buffer.getInt(position + 4);
+				long timestamp = this.buffer.getLong(position + 8);
+
+				// stop at the end marker or at corrupted records
+				if ((type == NotificationJournal.END_RECORD) || (length < 0)
+						|| (position + NotificationJournal.RECORD_HEADER_SIZE
+								+ length > end))
+					break;
+
+				byte[] payload = new byte[length];
+				view.position(position + NotificationJournal.RECORD_HEADER_SIZE);
+				view.get(payload);
+
+				if (type == NotificationJournal.CHANNEL_RECORD)
+				{
+					segmentChannels.put(channelId, this.listeners
+							.get(new String(payload, NotificationJournal.ASCII)));
+				}
+				else if (type == NotificationJournal.NOTIFICATION_RECORD)
+				{
+					// pace the replay, if needed
+					if (firstTimestamp < 0)
+						firstTimestamp = timestamp;
+					if (speed > 0)
+					{
+						long wait = start
+								+ (long) ((timestamp - firstTimestamp) / speed)
+								- System.currentTimeMillis();
+						if (wait > 0)
+							Thread.sleep(wait);
+					}
+
+					// deliver the notification
+					List<BluetoothNotification<byte[]>> channelListeners = segmentChannels
+							.get(channelId);
+					if (channelListeners != null)
+					{
+						for (BluetoothNotification<byte[]> listener : channelListeners)
+							listener.run(payload);
+					}
+					replayed++;
+				}
+
+				position += NotificationJournal.RECORD_HEADER_SIZE + length;
+			}
+		}
+
+		return replayed;
+	}
+
+	/**
+	 * Closes the journal file.
+	 */
+	public void close()
+	{
+		try
+		{
+			this.file.close();
+		}
+		catch (IOException e)
+		{
+			// nothing to do, the mapping is released when garbage collected
+		}
+	}
+
+	/**
+	 * Provides the start offsets of all the written segments, sorted by
+	 * generation, i.e., from the oldest to the newest.
+	 */
+	private List<Integer> getSegmentsByGeneration()
+	{
+		// the written segments and their generation
+		final Map<Integer, Long> generations = new HashMap<>();
+
+		for (int i = 0; i < this.segmentCount; i++)
+		{
+			int segmentStart = NotificationJournal.FILE_HEADER_SIZE
+					+ (i * this.segmentSize);
+			if ((segmentStart + this.segmentSize <= this.buffer.capacity())
+					&& (this.buffer
+							.getInt(segmentStart) == NotificationJournal.SEGMENT_MAGIC)
+					&& (this.buffer.getLong(segmentStart + 8) > 0))
+				generations.put(segmentStart,
+						this.buffer.getLong(segmentStart + 8));
+		}
+
+		List<Integer> segments = new ArrayList<>(generations.keySet());
+		Collections.sort(segments, new Comparator<Integer>()
+		{
+			@Override
+			public int compare(Integer o1, Integer o2)
+			{
+				return generations.get(o1).compareTo(generations.get(o2));
+			}
+		});
+		return segments;
+	}
+}
@@ -0,0 +1,65 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * A processing stage of the notification pipeline handled by the
+ * {@link NotificationDispatcher}. Stages are invoked, in order, on the thread
+ * delivering the native notification, before the notification reaches the
+ * listeners registered by client bundles; they must therefore be fast and
+ * must not block.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+interface NotificationStage
+{
+	/**
+	 * Called when a new notification channel is opened, i.e., when the first
+	 * listener subscribes to a characteristic.
+	 * 
+	 * @param channel
+	 *            The opened channel.
+	 */
+	public void channelOpened(NotificationChannel channel);
+
+	/**
+	 * Called when a notification channel is closed, i.e., when the last
+	 * listener un-subscribes from a characteristic.
+	 * 
+	 * @param channel
+	 *            The closed channel.
+	 */
+	public void channelClosed(NotificationChannel channel);
+
+	/**
+	 * Processes a notification received on the given channel.
+	 * 
+	 * @param channel
+	 *            The channel on which the notification has been received.
+	 * @param value
+	 *            The notified value, shared among all stages and listeners,
+	 *            it must not be modified.
+	 * @param timestamp
+	 *            The reception time, in milliseconds since the epoch.
+	 * @return true if the notification shall be passed to the next stages and
+	 *         to the listeners, false to suppress it.
+	 */
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp);
+}
@@ -0,0 +1,515 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Detects stalled notification streams, i.e., subscribed characteristics
+ * which silently stop notifying while the connection is still up. Every
+ * stream has an expected notification period, either configured (e.g.,
+ * after writing the sensor period characteristic) or learned from the
+ * observed inter-arrival times, and is flagged as stalled after a given
+ * number of missed periods. Stalled streams can be automatically recovered
+ * by re-enabling notifications.
+ * <p>
+ * All the streams share a single {@link HashedWheelTimer}; notifications
+ * only record their arrival time and never touch the wheel: a stream timeout
+ * is re-armed, lazily, only when it expires. Recoveries perform blocking
+ * D-Bus calls, possibly lasting for the whole D-Bus timeout on a dead device,
+ * therefore they never run on the timer thread: they are queued as GATT
+ * operations, sharing the radio fairly with the other clients. As a recovery
+ * occupies the single GATT worker, it is bounded: at most one recovery per
+ * stream is queued, streams of disconnected devices are not recovered, and
+ * failed recoveries are retried with an exponential back-off.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class NotificationWatchdog implements NotificationStage
+{
+	// default number of missed periods after which a stream is stalled
+	static int DEFAULT_MISSED_PERIODS = 3;
+
+	// the weight of the newest inter-arrival time in the learned period
+	private static final double LEARNING_WEIGHT = 0.125;
+
+	// the maximum back-off of failed recoveries, as a power of 2 of the
+	// allowed silence
+	private static final int MAX_RECOVERY_BACKOFF = 5;
+
+	/**
+	 * The liveness state of a single stream.
+	 */
+	private class Stream extends HashedWheelTimer.Timeout
+	{
+		// the monitored channel
+		final NotificationChannel channel;
+
+		// the time at which the stream has been opened or its supervision
+		// resumed
+		volatile long since;
+
+		// true while supervision is suspended
+		volatile boolean suspended;
+
+		// the time of the last notification, 0 if none received
+		volatile long lastSeen;
+
+		// the learned period, 0 until at least two notifications arrive
+		volatile double learnedPeriod;
+
+		// the configured period, 0 to use the learned one
+		volatile long configuredPeriod;
+
+		// the stalled flag
+		volatile boolean stalled;
+
+		// the pending recovery flag, at most one recovery per stream is
+		// queued
+		final AtomicBoolean recovering = new AtomicBoolean();
+
+		// the number of consecutive failed recoveries, and the time before
+		// which no recovery is attempted, written by the recovery only
+		volatile int failedRecoveries;
+		volatile long nextRecovery;
+
+		Stream(NotificationChannel channel)
+		{
+			this.channel = channel;
+			this.since = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return the time of the last notification or, if none has been
+		 *         received since, the time at which the stream has been
+		 *         opened or its supervision resumed
+		 */
+		long getLastActivity()
+		{
+			return Math.max(this.lastSeen, this.since);
+		}
+
+		/**
+		 * @return the expected notification period, 0 if unknown
+		 */
+		long getPeriod()
+		{
+			return (this.configuredPeriod > 0) ? this.configuredPeriod
+					: (long) this.learnedPeriod;
+		}
+
+		/**
+		 * Records a notification, called by the notification thread only.
+		 */
+		void notified(long timestamp)
+		{
+			long previous = this.lastSeen;
+			this.lastSeen = timestamp;
+
+			// do not learn from the gap spanning a suspension
+			if (previous < this.since)
+				previous = 0;
+
+			// the timeout must be armed when the period is first known
+			boolean unknownPeriod = (this.getPeriod() == 0);
+
+			// learn the period with an exponentially weighted moving average
+			if ((previous > 0) && (timestamp > previous))
+			{
+				long interval = timestamp - previous;
+				this.learnedPeriod = (this.learnedPeriod == 0) ? interval
+						: this.learnedPeriod + NotificationWatchdog.LEARNING_WEIGHT
+								* (interval - this.learnedPeriod);
+			}
+
+			if ((unknownPeriod) && (this.getPeriod() > 0))
+				NotificationWatchdog.this.arm(this);
+
+			if (this.stalled)
+			{
+				this.stalled = false;
+				this.failedRecoveries = 0;
+				this.nextRecovery = 0;
+				NotificationWatchdog.this.fireResumed(this);
+			}
+		}
+
+		@Override
+		void expired(long now)
+		{
+			NotificationWatchdog.this.check(this, now);
+		}
+	}
+
+	// the timer wheel shared by all streams
+	private final HashedWheelTimer timer;
+
+	// the GATT client running recoveries
+	private final GattClient client;
+
+	// the monitored streams, indexed by channel key
+	private final ConcurrentHashMap<String, Stream> streams;
+
+	// the configured periods, indexed by channel key, kept also for closed
+	// channels
+	private final ConcurrentHashMap<String, Long> configuredPeriods;
+
+	// the keys of the channels whose supervision is suspended, kept also for
+	// closed channels
+	private final Set<String> suspended;
+
+	// the listeners to notify
+	private final CopyOnWriteArrayList<StreamStallListener> listeners;
+
+	// the number of missed periods after which a stream is stalled
+	private volatile int missedPeriods;
+
+	// the automatic recovery flag
+	private volatile boolean autoRecover;
+
+	/**
+	 * Creates a new watchdog.
+	 * 
+	 * @param timer
+	 *            The timer wheel shared by all streams.
+	 * @param client
+	 *            The GATT client running recoveries.
+	 */
+	NotificationWatchdog(HashedWheelTimer timer, GattClient client)
+	{
+		this.timer = timer;
+		this.client = client;
+		this.streams = new ConcurrentHashMap<>();
+		this.configuredPeriods = new ConcurrentHashMap<>();
+		this.suspended = Collections
+				.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+		this.listeners = new CopyOnWriteArrayList<>();
+		this.missedPeriods = NotificationWatchdog.DEFAULT_MISSED_PERIODS;
+		this.autoRecover = false;
+	}
+
+	/**
+	 * Configures stall detection.
+	 * 
+	 * @param missedPeriods
+	 *            The number of missed periods after which a stream is
+	 *            stalled.
+	 * @param autoRecover
+	 *            true to re-enable notifications of stalled streams.
+	 */
+	void configure(int missedPeriods, boolean autoRecover)
+	{
+		this.missedPeriods = Math.max(1, missedPeriods);
+		this.autoRecover = autoRecover;
+	}
+
+	/**
+	 * Sets the expected notification period of the given characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @param periodMillis
+	 *            The expected period in milliseconds, 0 or negative to learn
+	 *            it from the observed notifications.
+	 */
+	void setExpectedPeriod(String deviceAddress, String uuid,
+			long periodMillis)
+	{
+		String key = NotificationChannel.keyOf(deviceAddress, uuid);
+		long period = Math.max(0, periodMillis);
+
+		this.configuredPeriods.put(key, period);
+
+		Stream stream = this.streams.get(key);
+		if (stream != null)
+		{
+			stream.configuredPeriod = period;
+			this.arm(stream);
+		}
+	}
+
+	/**
+	 * Suspends or resumes the supervision of the given characteristic, e.g.,
+	 * while the sensor is turned off but notifications stay enabled. A
+	 * suspended stream is never flagged as stalled; on resume, the silence is
+	 * measured from the resume time.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @param supervised
+	 *            true to resume supervision, false to suspend it.
+	 */
+	void setSupervised(String deviceAddress, String uuid, boolean supervised)
+	{
+		String key = NotificationChannel.keyOf(deviceAddress, uuid);
+		if (supervised)
+			this.suspended.remove(key);
+		else
+			this.suspended.add(key);
+
+		Stream stream = this.streams.get(key);
+		if ((stream != null) && (stream.suspended == supervised))
+		{
+			if (supervised)
+			{
+				stream.since = System.currentTimeMillis();
+				stream.suspended = false;
+				this.arm(stream);
+			}
+			else
+			{
+				stream.suspended = true;
+				this.timer.cancel(stream);
+			}
+		}
+	}
+
+	/**
+	 * Adds a listener
+	 * 
+	 * @param listener
+	 *            The listener to add.
+	 */
+	void addListener(StreamStallListener listener)
+	{
+		this.listeners.addIfAbsent(listener);
+	}
+
+	/**
+	 * Removes a listener
+	 * 
+	 * @param listener
+	 *            The listener to remove.
+	 */
+	void removeListener(StreamStallListener listener)
+	{
+		this.listeners.remove(listener);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelOpened(NotificationChannel channel)
+	{
+		Stream stream = new Stream(channel);
+
+		Long configured = this.configuredPeriods.get(channel.getKey());
+		if (configured != null)
+			stream.configuredPeriod = configured;
+		stream.suspended = this.suspended.contains(channel.getKey());
+
+		this.streams.put(channel.getKey(), stream);
+
+		// with a configured period, a stream that never starts is stalled as
+		// well
+		this.arm(stream);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelClosed(NotificationChannel channel)
+	{
+		Stream stream = this.streams.remove(channel.getKey());
+		if (stream != null)
+			this.timer.cancel(stream);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		Stream stream = this.streams.get(channel.getKey());
+		if (stream != null)
+			stream.notified(timestamp);
+		return true;
+	}
+
+	/**
+	 * Arms the timeout of the given stream, if its period is known.
+	 */
+	private void arm(Stream stream)
+	{
+		long period = stream.getPeriod();
+		if ((period > 0) && (!stream.suspended))
+			this.timer.schedule(stream,
+					stream.getLastActivity() + (period * this.missedPeriods));
+	}
+
+	/**
+	 * Checks the liveness of the given stream when its timeout expires.
+	 */
+	private void check(final Stream stream, long now)
+	{
+		// ignore streams closed in the meanwhile
+		if (this.streams.get(stream.channel.getKey()) != stream)
+			return;
+
+		long period = stream.getPeriod();
+		if ((period <= 0) || (stream.suspended))
+			return;
+
+		long silence = now - stream.getLastActivity();
+		long allowed = period * this.missedPeriods;
+
+		if (silence < allowed)
+		{
+			// notifications arrived in the meanwhile, re-arm lazily
+			this.timer.schedule(stream, stream.getLastActivity() + allowed);
+			return;
+		}
+
+		// the stream is stalled, notify only once
+		if (!stream.stalled)
+		{
+			stream.stalled = true;
+			for (StreamStallListener listener : this.listeners)
+			{
+				try
+				{
+					listener.stalled(stream.channel.getDeviceAddress(),
+							stream.channel.getUUID(), silence);
+				}
+				catch (RuntimeException e)
+				{
+					// a faulty listener shall not stop the watchdog
+				}
+			}
+		}
+
+		// try to recover through the GATT scheduler, unless a recovery is
+		// still pending or backing off
+		if ((this.autoRecover) && (now >= stream.nextRecovery)
+				&& (stream.recovering.compareAndSet(false, true)))
+		{
+			final long backoff = allowed;
+			try
+			{
+				this.client.submit(new Callable<Void>()
+				{
+					@Override
+					public Void call()
+					{
+						NotificationWatchdog.this.recover(stream, backoff);
+						return null;
+					}
+				});
+			}
+			catch (RejectedExecutionException e)
+			{
+				// the scheduler is shut down or busy, retry at the next check
+				stream.recovering.set(false);
+			}
+		}
+
+		// check again after another allowed silence
+		this.timer.schedule(stream, now + allowed);
+	}
+
+	/**
+	 * Re-enables the notifications of the given stalled stream, backing off
+	 * on failure.
+	 * 
+	 * @param backoff
+	 *            The base back-off after a failure, in milliseconds.
+	 */
+	private void recover(Stream stream, long backoff)
+	{
+		NotificationChannel channel = stream.channel;
+		boolean recovered = false;
+		try
+		{
+			// skip streams closed while the recovery was queued, and
+			// disconnected devices, whose D-Bus calls would block the GATT
+			// worker until timing out
+			if ((this.streams.get(channel.getKey()) == stream)
+					&& (channel.getCharacteristic().getService().getDevice()
+							.getConnected()))
+			{
+				channel.getCharacteristic().disableValueNotifications();
+				channel.getCharacteristic().enableValueNotifications(channel);
+				recovered = true;
+			}
+		}
+		catch (RuntimeException e)
+		{
+			// the device may be gone, retry after the back-off
+		}
+		finally
+		{
+			if (recovered)
+				stream.failedRecoveries = 0;
+			else
+			{
+				int failed = Math.min(stream.failedRecoveries,
+						NotificationWatchdog.MAX_RECOVERY_BACKOFF);
+				stream.nextRecovery = System.currentTimeMillis()
+						+ (backoff << failed);
+				stream.failedRecoveries = failed + 1;
+			}
+			stream.recovering.set(false);
+		}
+	}
+
+	/**
+	 * Notifies the listeners that the given stream resumed.
+	 */
+	private void fireResumed(Stream stream)
+	{
+		for (StreamStallListener listener : this.listeners)
+		{
+			try
+			{
+				listener.resumed(stream.channel.getDeviceAddress(),
+						stream.channel.getUUID());
+			}
+			catch (RuntimeException e)
+			{
+				// a faulty listener shall not stop the watchdog
+			}
+		}
+	}
+}
@@ -0,0 +1,47 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Decodes the raw payload notified by a characteristic into one or more
+ * scaled values, e.g., the object and ambient temperatures of the SensorTag
+ * IR temperature sensor. Decoders are called on the notification thread and
+ * must not allocate.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public interface PayloadDecoder
+{
+	/**
+	 * @return the number of values decoded from every payload
+	 */
+	public int getValueCount();
+
+	/**
+	 * Decodes the given payload
+	 * 
+	 * @param payload
+	 *            The raw payload.
+	 * @param values
+	 *            The array in which decoded values shall be stored, having at
+	 *            least {@link #getValueCount()} elements.
+	 * @return The number of decoded values, 0 if the payload is not valid.
+	 */
+	public int decode(byte[] payload, float[] values);
+}
@@ -0,0 +1,217 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Suppresses the delivery of notified values not differing enough from the
+ * last delivered one, according to the {@link Deadband} configured for the
+ * characteristic, while still delivering a heartbeat value after the
+ * configured maximum silence. Characteristics without a deadband are not
+ * filtered.
+ * <p>
+ * The filter is installed as the dispatcher delivery filter, i.e., it runs
+ * after all the other stages: caches, time series and captures still see
+ * every notification, only listeners are spared the unchanged values.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class ReportByExceptionFilter implements NotificationStage
+{
+	/**
+	 * The filter state of a single characteristic, only accessed by the thread
+	 * delivering its notifications.
+	 */
+	private static class Entry
+	{
+		// the deadband
+		final Deadband deadband;
+
+		// the last delivered payload, null until the first delivery
+		byte[] lastPayload;
+
+		// the last delivered decoded values and their number
+		final float[] lastValues;
+		int lastCount;
+
+		// the decoded values of the current notification
+		final float[] decoded;
+
+		// the time of the last delivery in milliseconds since the epoch, reset
+		// when the channel is closed
+		volatile long lastDelivery;
+
+		// the number of suppressed notifications
+		volatile long suppressed;
+
+		Entry(Deadband deadband)
+		{
+			int count = (deadband.getDecoder() != null)
+					? deadband.getDecoder().getValueCount() : 0;
+
+			this.deadband = deadband;
+			this.lastValues = new float[count];
+			this.decoded = new float[count];
+		}
+	}
+
+	// the filter entries, indexed by channel key
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/**
+	 * Creates a filter with no configured deadbands.
+	 */
+	ReportByExceptionFilter()
+	{
+		this.entries = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Sets the deadband of the given characteristic, the next notification is
+	 * always delivered.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @param deadband
+	 *            The deadband, null to deliver all notifications.
+	 */
+	void setDeadband(String deviceAddress, String uuid, Deadband deadband)
+	{
+		String key = NotificationChannel.keyOf(deviceAddress, uuid);
+		if (deadband != null)
+			this.entries.put(key, new Entry(deadband));
+		else
+			this.entries.remove(key);
+	}
+
+	/**
+	 * Provides the number of notifications of the given characteristic
+	 * suppressed since its deadband has been set.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @return The number of suppressed notifications, 0 if no deadband is set.
+	 */
+	long getSuppressed(String deviceAddress, String uuid)
+	{
+		Entry entry = this.entries
+				.get(NotificationChannel.keyOf(deviceAddress, uuid));
+		return (entry != null) ? entry.suppressed : 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelOpened(NotificationChannel channel)
+	{
+		// deadbands are configured explicitly, nothing to do
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelClosed(NotificationChannel channel)
+	{
+		// deliver the first value after a new subscription
+		Entry entry = this.entries.get(channel.getKey());
+		if (entry != null)
+			entry.lastDelivery = 0;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		Entry entry = this.entries.get(channel.getKey());
+		if (entry == null)
+			return true;
+
+		Deadband deadband = entry.deadband;
+		PayloadDecoder decoder = deadband.getDecoder();
+
+		// decode the value, if needed
+		int count = (decoder != null) ? decoder.decode(value, entry.decoded)
+				: 0;
+
+		// always deliver the first value and the heartbeats
+		boolean deliver = (entry.lastDelivery == 0)
+				|| ((deadband.getMaxSilenceMillis() > 0) && (timestamp
+						- entry.lastDelivery >= deadband.getMaxSilenceMillis()));
+
+		if (!deliver)
+		{
+			if (decoder == null)
+				deliver = !Arrays.equals(value, entry.lastPayload);
+			else if ((count == 0) || (count != entry.lastCount))
+				// undecodable values cannot be compared
+				deliver = true;
+			else
+			{
+				for (int i = 0; (i < count) && !deliver; i++)
+					deliver = deadband.exceeds(entry.lastValues[i],
+							entry.decoded[i]);
+			}
+		}
+
+		if (!deliver)
+		{
+			entry.suppressed++;
+			return false;
+		}
+
+		// remember the delivered value, the band is centered on it
+		entry.lastDelivery = timestamp;
+		if (decoder == null)
+		{
+			if ((entry.lastPayload == null)
+					|| (entry.lastPayload.length != value.length))
+				entry.lastPayload = new byte[value.length];
+			System.arraycopy(value, 0, entry.lastPayload, 0, value.length);
+		}
+		else
+		{
+			System.arraycopy(entry.decoded, 0, entry.lastValues, 0, count);
+			entry.lastCount = count;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,40 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Receives the outcome of a lookup performed asynchronously by the
+ * {@link BluetoothService}.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ * @param <T>
+ *            The type of the looked up object.
+ */
+public interface RetryCallback<T>
+{
+	/**
+	 * Called exactly once, when the lookup completes. The callback runs on the
+	 * service threads and shall not block.
+	 * 
+	 * @param result
+	 *            The looked up object, or null if the lookup failed, timed out
+	 *            or has been cancelled.
+	 */
+	public void completed(T result);
+}
@@ -0,0 +1,172 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Retries lookups according to a {@link RetryPolicy}, without parking any
+ * thread between attempts: every attempt is a short task scheduled on the
+ * executor shared by the service, and the outcome is delivered through a
+ * {@link RetryFuture}.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class RetryEngine
+{
+	/**
+	 * A single lookup attempt.
+	 * 
+	 * @param <T>
+	 *            The type of the looked up object.
+	 */
+	interface Lookup<T>
+	{
+		/**
+		 * Performs a lookup attempt.
+		 * 
+		 * @return true if the lookup is concluded, false if it shall be
+		 *         retried.
+		 */
+		public boolean attempt();
+
+		/**
+		 * @return the lookup result, once concluded (may be null)
+		 */
+		public T getResult();
+	}
+
+	// the executor running the attempts
+	private final ScheduledExecutorService executor;
+
+	/**
+	 * Creates a new engine running attempts on the given executor.
+	 * 
+	 * @param executor
+	 *            The executor running the attempts.
+	 */
+	RetryEngine(ScheduledExecutorService executor)
+	{
+		this.executor = executor;
+	}
+
+	/**
+	 * Submits a lookup, the first attempt is performed as soon as possible.
+	 * 
+	 * @param lookup
+	 *            The lookup to perform.
+	 * @param policy
+	 *            The policy defining how the lookup is retried.
+	 * @param callback
+	 *            The callback notified on completion, may be null.
+	 * @return The future lookup result.
+	 */
+	<T> RetryFuture<T> submit(Lookup<T> lookup, RetryPolicy policy,
+			RetryCallback<T> callback)
+	{
+		RetryFuture<T> future = new RetryFuture<>(callback);
+
+		// the lookup deadline, if any
+		long deadline = (policy.getTimeoutMillis() >= 0)
+				? System.currentTimeMillis() + policy.getTimeoutMillis()
+				: Long.MAX_VALUE;
+
+		this.schedule(new Attempt<>(lookup, policy, future, deadline), 0);
+
+		return future;
+	}
+
+	/**
+	 * Schedules the given attempt after the given delay, failing the lookup if
+	 * the service is shutting down.
+	 */
+	private <T> void schedule(Attempt<T> attempt, long delayMillis)
+	{
+		try
+		{
+			attempt.future.setPendingAttempt(this.executor.schedule(attempt,
+					delayMillis, TimeUnit.MILLISECONDS));
+		}
+		catch (RejectedExecutionException e)
+		{
+			attempt.future.complete(null);
+		}
+	}
+
+	/**
+	 * The task performing a single attempt and scheduling the next one, if
+	 * needed.
+	 */
+	private class Attempt<T> implements Runnable
+	{
+		private final Lookup<T> lookup;
+		private final RetryPolicy policy;
+		private final RetryFuture<T> future;
+		private final long deadline;
+
+		Attempt(Lookup<T> lookup, RetryPolicy policy, RetryFuture<T> future,
+				long deadline)
+		{
+			this.lookup = lookup;
+			this.policy = policy;
+			this.future = future;
+			this.deadline = deadline;
+		}
+
+		@Override
+		public void run()
+		{
+			// stop if cancelled in the meanwhile
+			if (this.future.isDone())
+				return;
+
+			int attempts = this.future.attempted();
+
+			boolean concluded;
+			try
+			{
+				concluded = this.lookup.attempt();
+			}
+			catch (RuntimeException e)
+			{
+				// native calls fail while devices are (dis)appearing, retry
+				concluded = false;
+			}
+
+			if (concluded)
+			{
+				this.future.complete(this.lookup.getResult());
+				return;
+			}
+
+			// the time left before the deadline
+			long left = this.deadline - System.currentTimeMillis();
+
+			// give up if no more attempts are allowed before the deadline,
+			// otherwise retry, at the latest when the deadline expires
+			if ((!this.policy.canRetry(attempts)) || (left <= 0))
+				this.future.complete(null);
+			else
+				RetryEngine.this.schedule(this,
+						Math.min(this.policy.getDelayMillis(attempts), left));
+		}
+	}
+}
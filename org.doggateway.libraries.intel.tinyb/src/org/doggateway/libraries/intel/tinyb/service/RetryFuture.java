@@ -0,0 +1,217 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The pending result of a lookup retried by the {@link RetryEngine}. The
+ * future completes with the looked up object, or with null if the lookup
+ * failed or timed out; cancelling the future stops any further attempt.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ * @param <T>
+ *            The type of the looked up object.
+ */
+public final class RetryFuture<T> implements Future<T>
+{
+	// the lookup states
+	private static final int RUNNING = 0;
+	private static final int COMPLETED = 1;
+	private static final int CANCELLED = 2;
+
+	// the lookup state
+	private final AtomicInteger state;
+
+	// the latch released on completion
+	private final CountDownLatch done;
+
+	// the callback to notify on completion, may be null
+	private final RetryCallback<T> callback;
+
+	// the lookup result
+	private volatile T result;
+
+	// the number of attempts performed so far
+	private volatile int attempts;
+
+	// the pending attempt, cancelled together with the future
+	private volatile Future<?> pendingAttempt;
+
+	/**
+	 * Creates a new running future.
+	 * 
+	 * @param callback
+	 *            The callback to notify on completion, may be null.
+	 */
+	RetryFuture(RetryCallback<T> callback)
+	{
+		this.state = new AtomicInteger(RetryFuture.RUNNING);
+		this.done = new CountDownLatch(1);
+		this.callback = callback;
+	}
+
+	/**
+	 * Completes the future with the given result, if still running.
+	 * 
+	 * @param result
+	 *            The lookup result, null on failure.
+	 */
+	void complete(T result)
+	{
+		if (this.state.compareAndSet(RetryFuture.RUNNING,
+				RetryFuture.COMPLETED))
+		{
+			this.result = result;
+			this.finish();
+		}
+	}
+
+	/**
+	 * Stores the next scheduled attempt, to be cancelled with the future.
+	 * 
+	 * @param pendingAttempt
+	 *            The scheduled attempt.
+	 */
+	void setPendingAttempt(Future<?> pendingAttempt)
+	{
+		this.pendingAttempt = pendingAttempt;
+
+		// handle cancellations racing with scheduling
+		if (this.isCancelled())
+			pendingAttempt.cancel(false);
+	}
+
+	/**
+	 * Records a new attempt.
+	 * 
+	 * @return The number of attempts performed so far, including this one.
+	 */
+	int attempted()
+	{
+		// attempts are serialized by the engine
+		return ++this.attempts;
+	}
+
+	/**
+	 * @return the number of attempts performed so far
+	 */
+	public int getAttempts()
+	{
+		return this.attempts;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#cancel(boolean)
+	 */
+	@Override
+	public boolean cancel(boolean mayInterruptIfRunning)
+	{
+		if (this.state.compareAndSet(RetryFuture.RUNNING,
+				RetryFuture.CANCELLED))
+		{
+			Future<?> pending = this.pendingAttempt;
+			if (pending != null)
+				pending.cancel(false);
+
+			this.finish();
+			return true;
+		}
+		return false;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isCancelled()
+	 */
+	@Override
+	public boolean isCancelled()
+	{
+		return this.state.get() == RetryFuture.CANCELLED;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#isDone()
+	 */
+	@Override
+	public boolean isDone()
+	{
+		return this.state.get() != RetryFuture.RUNNING;
+	}
+
+	/**
+	 * Waits for the lookup to complete. Differently from other futures,
+	 * cancelled lookups provide a null result instead of throwing a
+	 * {@link java.util.concurrent.CancellationException}.
+	 * 
+	 * @return The looked up object, or null.
+	 * @throws InterruptedException
+	 *             If the calling thread is interrupted while waiting.
+	 */
+	@Override
+	public T get() throws InterruptedException
+	{
+		this.done.await();
+		return this.result;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see java.util.concurrent.Future#get(long,
+	 * java.util.concurrent.TimeUnit)
+	 */
+	@Override
+	public T get(long timeout, TimeUnit unit)
+			throws InterruptedException, TimeoutException
+	{
+		if (!this.done.await(timeout, unit))
+			throw new TimeoutException();
+		return this.result;
+	}
+
+	/**
+	 * Releases the waiting threads and notifies the callback.
+	 */
+	private void finish()
+	{
+		this.done.countDown();
+
+		if (this.callback != null)
+		{
+			try
+			{
+				this.callback.completed(this.result);
+			}
+			catch (RuntimeException e)
+			{
+				// a faulty callback shall not break the engine
+			}
+		}
+	}
+}
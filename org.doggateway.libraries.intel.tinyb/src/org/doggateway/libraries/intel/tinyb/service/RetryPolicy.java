@@ -0,0 +1,157 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Defines how lookups performed by the {@link BluetoothService} are retried:
+ * the delay between subsequent attempts, possibly growing exponentially, the
+ * maximum number of attempts and an overall deadline. Policies are immutable
+ * and can be shared among lookups.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class RetryPolicy
+{
+	// the delay before the first retry, in milliseconds
+	private final long initialDelayMillis;
+
+	// the factor by which the delay grows at every retry
+	private final double backoffFactor;
+
+	// the maximum delay between two attempts, in milliseconds
+	private final long maxDelayMillis;
+
+	// the maximum number of attempts, negative for unbounded attempts
+	private final int maxAttempts;
+
+	// the overall lookup timeout in milliseconds, negative for no deadline
+	private final long timeoutMillis;
+
+	/**
+	 * Creates a new policy, use the static factory methods instead.
+	 */
+	private RetryPolicy(long initialDelayMillis, double backoffFactor,
+			long maxDelayMillis, int maxAttempts, long timeoutMillis)
+	{
+		this.initialDelayMillis = initialDelayMillis;
+		this.backoffFactor = backoffFactor;
+		this.maxDelayMillis = maxDelayMillis;
+		this.maxAttempts = maxAttempts;
+		this.timeoutMillis = timeoutMillis;
+	}
+
+	/**
+	 * Creates a policy retrying at a fixed rate.
+	 * 
+	 * @param delayMillis
+	 *            The delay between attempts in milliseconds, if not positive
+	 *            {@link BluetoothServiceImpl#RETRY_AFTER_MILLIS} is used.
+	 * @param maxAttempts
+	 *            The maximum number of attempts, -1 for infinite attempts. At
+	 *            least one attempt is always performed.
+	 * @return The policy.
+	 */
+	public static RetryPolicy fixed(long delayMillis, int maxAttempts)
+	{
+		long delay = (delayMillis > 0) ? delayMillis
+				: BluetoothServiceImpl.RETRY_AFTER_MILLIS;
+		return new RetryPolicy(delay, 1.0, delay, maxAttempts, -1);
+	}
+
+	/**
+	 * Creates a policy retrying with exponentially growing delays.
+	 * 
+	 * @param initialDelayMillis
+	 *            The delay before the first retry, in milliseconds.
+	 * @param backoffFactor
+	 *            The factor by which the delay grows at every retry, not lower
+	 *            than 1.
+	 * @param maxDelayMillis
+	 *            The maximum delay between two attempts, in milliseconds.
+	 * @param maxAttempts
+	 *            The maximum number of attempts, -1 for infinite attempts. At
+	 *            least one attempt is always performed.
+	 * @return The policy.
+	 */
+	public static RetryPolicy exponential(long initialDelayMillis,
+			double backoffFactor, long maxDelayMillis, int maxAttempts)
+	{
+		return new RetryPolicy(Math.max(1, initialDelayMillis),
+				Math.max(1.0, backoffFactor),
+				Math.max(initialDelayMillis, maxDelayMillis), maxAttempts, -1);
+	}
+
+	/**
+	 * Provides a copy of this policy, giving up after the given time since the
+	 * beginning of the lookup, regardless of the number of attempts performed.
+	 * 
+	 * @param timeoutMillis
+	 *            The overall lookup timeout, in milliseconds.
+	 * @return The new policy.
+	 */
+	public RetryPolicy withTimeout(long timeoutMillis)
+	{
+		return new RetryPolicy(this.initialDelayMillis, this.backoffFactor,
+				this.maxDelayMillis, this.maxAttempts, timeoutMillis);
+	}
+
+	/**
+	 * @return the maximum number of attempts, negative for unbounded attempts
+	 */
+	public int getMaxAttempts()
+	{
+		return this.maxAttempts;
+	}
+
+	/**
+	 * @return the overall lookup timeout in milliseconds, negative if the
+	 *         lookup has no deadline
+	 */
+	public long getTimeoutMillis()
+	{
+		return this.timeoutMillis;
+	}
+
+	/**
+	 * Computes the delay to wait after the given failed attempt.
+	 * 
+	 * @param attempt
+	 *            The number of attempts already performed, starting from 1.
+	 * @return The delay in milliseconds.
+	 */
+	public long getDelayMillis(int attempt)
+	{
+		double delay = this.initialDelayMillis
+				* Math.pow(this.backoffFactor, attempt - 1);
+		return (long) Math.min(delay, this.maxDelayMillis);
+	}
+
+	/**
+	 * Checks if another attempt shall be performed after the given failed
+	 * attempt.
+	 * 
+	 * @param attempt
+	 *            The number of attempts already performed, starting from 1.
+	 * @return true if the lookup shall be retried, false otherwise.
+	 */
+	public boolean canRetry(int attempt)
+	{
+		return (this.maxAttempts < 0) || (attempt < this.maxAttempts);
+	}
+}
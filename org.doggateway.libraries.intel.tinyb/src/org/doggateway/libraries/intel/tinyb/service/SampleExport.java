@@ -0,0 +1,449 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Publishes the decoded samples of selected characteristics in a
+ * memory-mapped ring file, to be read by local processes, possibly not
+ * written in Java, with no copy and no system call per sample. The service
+ * is the single writer, any number of readers can map the file read-only.
+ * <p>
+ * File layout (all values little endian):
+ * <ul>
+ * <li>header, {@link #HEADER_SIZE} bytes: magic {@link #MAGIC} (int, at 0),
+ * version (int, at 4), slot count (int, at 8, a power of 2), slot size (int,
+ * at 12), maximum values per sample (int, at 16), directory offset (int, at
+ * 20), directory entries (int, at 24), directory entry size (int, at 28),
+ * slots offset (int, at 32), padding (int, at 36), write sequence (long, at
+ * {@link #WRITE_SEQUENCE_OFFSET}): the number of samples published so far;</li>
+ * <li>channel directory, {@link #MAX_CHANNELS} entries of
+ * {@link #DIRECTORY_ENTRY_SIZE} bytes: channel id (short, 0 for unused
+ * entries), values per sample (short), padding (int), channel key
+ * <code>address/uuid</code> (ASCII, zero padded);</li>
+ * <li>slots, sample <i>n</i> (starting from 1) being stored in slot
+ * <i>(n - 1) mod slot count</i>: slot sequence (long), timestamp in
+ * milliseconds since the epoch (long), channel id (short), value count
+ * (short), padding (int), values (float array).</li>
+ * </ul>
+ * Slots are protected by a sequence lock: the writer sets the slot sequence
+ * to <i>2n - 1</i> before writing sample <i>n</i> and to <i>2n</i> once done,
+ * then updates the write sequence. Readers poll the write sequence, read the
+ * slot sequence, the slot content and the slot sequence again, and retry (or
+ * skip the sample, if overwritten) when the two reads differ or do not match
+ * <i>2n</i>.
+ * <p>
+ * Java 7 offers no explicit fence, and a volatile write alone only has
+ * release semantics: later plain stores to the mapping may become visible
+ * before it on weakly ordered processors (e.g., ARM). Groups of stores are
+ * therefore separated by a volatile write followed by a volatile read, which
+ * HotSpot compiles to a full (StoreLoad) barrier on every architecture. On
+ * x86 (TSO) stores are never reordered among themselves, so the ordering
+ * holds regardless; on other architectures it relies on that JVM behaviour,
+ * which the Java memory model does not promise for readers outside the JVM.
+ * <p>
+ * Channel ids of unexported channels are reused, once all the samples
+ * published with the old id have been overwritten in the ring.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class SampleExport implements NotificationStage
+{
+	// the file format constants
+	static final int MAGIC = 0x53474f44;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 64;
+	static final int WRITE_SEQUENCE_OFFSET = 40;
+	static final int DIRECTORY_ENTRY_SIZE = 64;
+	static final int SLOT_HEADER_SIZE = 24;
+
+	// the maximum number of exported channels
+	static int MAX_CHANNELS = 64;
+
+	/**
+	 * An exported channel.
+	 */
+	private static class ExportChannel
+	{
+		// the channel id, starting from 1
+		final short id;
+
+		// the channel key
+		final String key;
+
+		// the payload decoder
+		final PayloadDecoder decoder;
+
+		// the decoded values, reused by the single notification thread
+		final float[] decoded;
+
+		// the sequence of the last published sample, 0 if none, guarded by
+		// the export
+		long lastSequence;
+
+		ExportChannel(short id, String key, PayloadDecoder decoder)
+		{
+			this.id = id;
+			this.key = key;
+			this.decoder = decoder;
+			this.decoded = new float[decoder.getValueCount()];
+		}
+	}
+
+	/**
+	 * A channel id freed by unexporting its channel.
+	 */
+	private static class FreeId
+	{
+		// the freed id
+		final short id;
+
+		// the sequence of the last sample published with the id, 0 if none
+		long lastSequence;
+
+		FreeId(short id, long lastSequence)
+		{
+			this.id = id;
+			this.lastSequence = lastSequence;
+		}
+	}
+
+	// the exported channels, indexed by channel key
+	private final ConcurrentHashMap<String, ExportChannel> channels;
+
+	// the next never used channel id
+	private short nextChannelId;
+
+	// the freed channel ids, oldest first
+	private final ArrayDeque<FreeId> freeIds;
+
+	// the export file, null when not exporting
+	private RandomAccessFile file;
+
+	// the mapped export file
+	private MappedByteBuffer buffer;
+
+	// the file geometry
+	private int slotMask;
+	private int slotSize;
+	private int maxValues;
+	private int directoryOffset;
+	private int slotsOffset;
+
+	// the number of published samples
+	private long sequence;
+
+	// written then read between groups of stores, to order them
+	private volatile long fence;
+
+	/**
+	 * Creates an export with no exported channels, not publishing until
+	 * opened.
+	 */
+	SampleExport()
+	{
+		this.channels = new ConcurrentHashMap<>();
+		this.nextChannelId = 1;
+		this.freeIds = new ArrayDeque<>();
+	}
+
+	/**
+	 * Starts publishing in the given file, overwriting it.
+	 * 
+	 * @param exportFile
+	 *            The export file.
+	 * @param slotCount
+	 *            The number of slots, rounded up to a power of 2.
+	 * @param maxValues
+	 *            The maximum number of values per sample, values exceeding it
+	 *            are not exported.
+	 * @throws IOException
+	 *             If the file cannot be created or mapped.
+	 */
+	synchronized void open(File exportFile, int slotCount, int maxValues)
+			throws IOException
+	{
+		this.close();
+
+		if ((slotCount < 1) || (maxValues < 1))
+			throw new IllegalArgumentException("Invalid export geometry: "
+					+ slotCount + " slots of " + maxValues + " values");
+
+		int slots = Integer.highestOneBit(Math.max(1, slotCount - 1)) << 1;
+		this.slotMask = slots - 1;
+		this.maxValues = maxValues;
+		this.slotSize = (SampleExport.SLOT_HEADER_SIZE + 4 * maxValues + 7)
+				& ~7;
+		this.directoryOffset = SampleExport.HEADER_SIZE;
+		this.slotsOffset = this.directoryOffset
+				+ SampleExport.MAX_CHANNELS * SampleExport.DIRECTORY_ENTRY_SIZE;
+
+		long size = this.slotsOffset + (long) slots * this.slotSize;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid export geometry: "
+					+ slotCount + " slots of " + maxValues + " values");
+
+		// create and map the file, truncating any previous content
+		this.file = new RandomAccessFile(exportFile, "rw");
+		this.file.setLength(0);
+		this.file.setLength(size);
+		this.buffer = this.file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+				0, size);
+		this.buffer.order(ByteOrder.LITTLE_ENDIAN);
+		this.sequence = 0;
+
+		// the new file holds no sample
+		for (ExportChannel channel : this.channels.values())
+			channel.lastSequence = 0;
+		for (FreeId free : this.freeIds)
+			free.lastSequence = 0;
+
+		// write the header, the magic last as readers check it first
+		this.buffer.putInt(4, SampleExport.VERSION);
+		this.buffer.putInt(8, slots);
+		this.buffer.putInt(12, this.slotSize);
+		this.buffer.putInt(16, maxValues);
+		this.buffer.putInt(20, this.directoryOffset);
+		this.buffer.putInt(24, SampleExport.MAX_CHANNELS);
+		this.buffer.putInt(28, SampleExport.DIRECTORY_ENTRY_SIZE);
+		this.buffer.putInt(32, this.slotsOffset);
+		this.buffer.putLong(SampleExport.WRITE_SEQUENCE_OFFSET, 0);
+		for (ExportChannel channel : this.channels.values())
+			this.writeDirectoryEntry(channel);
+		this.fence(0);
+		this.buffer.putInt(0, SampleExport.MAGIC);
+	}
+
+	/**
+	 * Stops publishing and closes the export file, the exported channels are
+	 * kept.
+	 */
+	synchronized void close()
+	{
+		if (this.file != null)
+		{
+			try
+			{
+				this.file.close();
+			}
+			catch (IOException e)
+			{
+				// the mapping stays valid until garbage collected, nothing
+				// else to do
+			}
+			this.file = null;
+			this.buffer = null;
+		}
+	}
+
+	/**
+	 * Exports the samples of the given characteristic, decoded by the given
+	 * decoder.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @param decoder
+	 *            The decoder, null to stop exporting the characteristic.
+	 */
+	synchronized void export(String deviceAddress, String uuid,
+			PayloadDecoder decoder)
+	{
+		String key = NotificationChannel.keyOf(deviceAddress, uuid);
+		ExportChannel previous = this.channels.get(key);
+
+		if (decoder == null)
+		{
+			if (previous != null)
+			{
+				this.channels.remove(key);
+				this.clearDirectoryEntry(previous.id);
+				this.freeIds.addLast(new FreeId(previous.id,
+						previous.lastSequence));
+			}
+			return;
+		}
+
+		// keep the id of re-exported channels, readers may rely on it
+		short id;
+		FreeId free = this.freeIds.peekFirst();
+		if (previous != null)
+			id = previous.id;
+		else if ((free != null) && ((this.buffer == null)
+				|| (free.lastSequence == 0)
+				|| (this.sequence - free.lastSequence > this.slotMask)))
+		{
+			// no sample of the previous owner is left in the ring, readers
+			// cannot attribute them to the new channel
+			id = this.freeIds.pollFirst().id;
+		}
+		else if (this.nextChannelId <= SampleExport.MAX_CHANNELS)
+			id = this.nextChannelId++;
+		else
+			throw new IllegalStateException("Cannot export more than "
+					+ SampleExport.MAX_CHANNELS + " channels");
+
+		ExportChannel channel = new ExportChannel(id, key, decoder);
+		if (previous != null)
+			channel.lastSequence = previous.lastSequence;
+		this.channels.put(key, channel);
+		if (this.buffer != null)
+			this.writeDirectoryEntry(channel);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelOpened(NotificationChannel channel)
+	{
+		// channels are exported explicitly, nothing to do
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelClosed(NotificationChannel channel)
+	{
+		// keep exporting, the characteristic may be subscribed again
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		ExportChannel exportChannel = this.channels.get(channel.getKey());
+		if (exportChannel != null)
+		{
+			int count = exportChannel.decoder.decode(value,
+					exportChannel.decoded);
+			if (count > 0)
+				this.publish(exportChannel, count, timestamp);
+		}
+
+		// exporting never suppresses notifications
+		return true;
+	}
+
+	/**
+	 * Publishes a decoded sample in the next slot.
+	 */
+	private synchronized void publish(ExportChannel channel, int count,
+			long timestamp)
+	{
+		// skip channels unexported or replaced since decoding, their id may
+		// have been freed
+		if ((this.buffer == null)
+				|| (this.channels.get(channel.key) != channel))
+			return;
+
+		long n = ++this.sequence;
+		channel.lastSequence = n;
+		int slot = this.slotsOffset + (int) ((n - 1) & this.slotMask)
+				* this.slotSize;
+		int values = Math.min(count, this.maxValues);
+
+		// mark the slot as being written
+		this.buffer.putLong(slot, 2 * n - 1);
+		this.fence(n);
+
+		this.buffer.putLong(slot + 8, timestamp);
+		this.buffer.putShort(slot + 16, channel.id);
+		this.buffer.putShort(slot + 18, (short) values);
+		for (int i = 0; i < values; i++)
+			this.buffer.putFloat(
+					slot + SampleExport.SLOT_HEADER_SIZE + 4 * i,
+					channel.decoded[i]);
+		this.fence(n);
+
+		// mark the slot as complete, then publish it
+		this.buffer.putLong(slot, 2 * n);
+		this.fence(n);
+		this.buffer.putLong(SampleExport.WRITE_SEQUENCE_OFFSET, n);
+	}
+
+	/**
+	 * Orders the stores to the mapping issued before the call with respect to
+	 * the ones issued after it, see the class documentation.
+	 * 
+	 * @return The fence value, read back.
+	 */
+	private long fence(long value)
+	{
+		this.fence = value;
+		return this.fence;
+	}
+
+	/**
+	 * Writes the directory entry of the given channel.
+	 */
+	private void writeDirectoryEntry(ExportChannel channel)
+	{
+		int entry = this.directoryOffset
+				+ (channel.id - 1) * SampleExport.DIRECTORY_ENTRY_SIZE;
+		byte[] key = channel.key.getBytes(NotificationJournal.ASCII);
+		int length = Math.min(key.length,
+				SampleExport.DIRECTORY_ENTRY_SIZE - 9);
+
+		// clear the entry, the id last as it marks the entry as valid
+		for (int i = 0; i < SampleExport.DIRECTORY_ENTRY_SIZE; i++)
+			this.buffer.put(entry + i, (byte) 0);
+		this.buffer.putShort(entry + 2,
+				(short) channel.decoder.getValueCount());
+		for (int i = 0; i < length; i++)
+			this.buffer.put(entry + 8 + i, key[i]);
+		this.fence(0);
+		this.buffer.putShort(entry, channel.id);
+	}
+
+	/**
+	 * Marks the directory entry of the given channel id as unused.
+	 */
+	private void clearDirectoryEntry(short id)
+	{
+		if (this.buffer != null)
+			this.buffer.putShort(this.directoryOffset
+					+ (id - 1) * SampleExport.DIRECTORY_ENTRY_SIZE, (short) 0);
+	}
+}
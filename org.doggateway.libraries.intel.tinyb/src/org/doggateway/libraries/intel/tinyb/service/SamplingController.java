@@ -0,0 +1,480 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import tinyb.BluetoothGattCharacteristic;
+import tinyb.BluetoothGattService;
+
+/**
+ * Drives the sampling period of SensorTag-like sensors according to the
+ * demands of the service clients: the sensor samples at the shortest period
+ * among the active {@link SamplingDemand}s and is turned off when no demand
+ * is active. Sensors are expected to follow the TI SensorTag layout, i.e., a
+ * value characteristic (e.g., f000aa01...) immediately followed, in the same
+ * service, by the configuration (f000aa02...) and by the period (f000aa03...)
+ * characteristics, the period being expressed in units of 10ms in a single
+ * byte.
+ * <p>
+ * The enable configurations of the active demands are merged by OR-ing them
+ * byte by byte, as they are bitmasks (e.g., the movement sensor axes): all
+ * the demands of a sensor shall have configurations of the same length, and
+ * multi-bit fields, such as the movement accelerometer range, shall be equal
+ * among them.
+ * <p>
+ * Configuration writes go through the fair GATT scheduler and are coalesced:
+ * when demand changes faster than writes complete, only the latest demand is
+ * applied. The applied period is also set as the expected period of the
+ * notification watchdog, whose supervision is suspended while the sensor is
+ * off.
+ * <p>
+ * Failed writes are retried through the retry engine, as soon as the device
+ * is connected, up to {@link #MAX_WRITE_RETRIES} times in a row; the current
+ * demand is also applied again whenever the hosting device is (re)connected
+ * or the sensor notifications are enabled, as the sensor is off after a
+ * reconnection.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class SamplingController
+{
+	// the period bounds, in units of 10ms
+	static final int MIN_PERIOD_UNITS = 10;
+	static final int MAX_PERIOD_UNITS = 255;
+
+	// the consecutive retries of failed configuration writes
+	static final int MAX_WRITE_RETRIES = 5;
+
+	// the default configuration value enabling a sensor
+	private static final byte[] DEFAULT_ENABLE = { 0x01 };
+
+	/**
+	 * The sampling state of a single sensor.
+	 */
+	private static class Sensor
+	{
+		// the value, configuration and period characteristics
+		final BluetoothGattCharacteristic value;
+		final BluetoothGattCharacteristic configuration;
+		final BluetoothGattCharacteristic period;
+
+		// the MAC address of the device hosting the sensor
+		final String deviceAddress;
+
+		// the active demands, guarded by the sensor
+		final List<SamplingDemand> demands;
+
+		// the applied period in milliseconds, 0 if the sensor is off, -1 if
+		// never configured or unknown, written by the GATT scheduler thread
+		volatile long appliedPeriod;
+
+		// the applied configuration, null if never configured
+		byte[] appliedConfiguration;
+
+		// true while a write task is queued, guarded by the sensor
+		boolean writePending;
+
+		// true if the applied state shall be written again regardless of the
+		// applied one, guarded by the sensor
+		boolean stale;
+
+		// the consecutive failed writes, guarded by the sensor
+		int failures;
+
+		Sensor(BluetoothGattCharacteristic value,
+				BluetoothGattCharacteristic configuration,
+				BluetoothGattCharacteristic period, String deviceAddress)
+		{
+			this.value = value;
+			this.configuration = configuration;
+			this.period = period;
+			this.deviceAddress = deviceAddress;
+			this.demands = new ArrayList<>();
+			this.appliedPeriod = -1;
+		}
+	}
+
+	// the client issuing the configuration writes
+	private final GattClient client;
+
+	// the watchdog notified of period changes
+	private final NotificationWatchdog watchdog;
+
+	// the engine retrying the failed writes
+	private final RetryEngine retryEngine;
+
+	// the controlled sensors, indexed by value channel key
+	private final ConcurrentHashMap<String, Sensor> sensors;
+
+	/**
+	 * Creates a new controller.
+	 * 
+	 * @param client
+	 *            The GATT scheduler client issuing the configuration writes.
+	 * @param watchdog
+	 *            The watchdog notified of period changes.
+	 * @param retryEngine
+	 *            The engine retrying the failed writes.
+	 */
+	SamplingController(GattClient client, NotificationWatchdog watchdog,
+			RetryEngine retryEngine)
+	{
+		this.client = client;
+		this.watchdog = watchdog;
+		this.retryEngine = retryEngine;
+		this.sensors = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Issues a new demand for the given sensor.
+	 * 
+	 * @param valueCharacteristic
+	 *            The sensor value characteristic.
+	 * @param periodMillis
+	 *            The required sampling period, in milliseconds, rounded to
+	 *            the supported resolution and range.
+	 * @param enableConfiguration
+	 *            The configuration value enabling the sensor, null for the
+	 *            default one (0x01).
+	 * @return The demand, to be released when no longer needed.
+	 * @throws IllegalArgumentException
+	 *             If the configuration and period characteristics cannot be
+	 *             found, or the configuration length differs from the one of
+	 *             the other active demands.
+	 */
+	SamplingDemand request(BluetoothGattCharacteristic valueCharacteristic,
+			long periodMillis, byte[] enableConfiguration)
+	{
+		String deviceAddress = valueCharacteristic.getService().getDevice()
+				.getAddress();
+		String key = NotificationChannel.keyOf(deviceAddress,
+				valueCharacteristic.getUUID());
+
+		Sensor sensor = this.sensors.get(key);
+		if (sensor == null)
+		{
+			BluetoothGattService service = valueCharacteristic.getService();
+			BluetoothGattCharacteristic configuration = service.find(
+					SamplingController.siblingUUID(valueCharacteristic.getUUID(), 1));
+			BluetoothGattCharacteristic period = service.find(
+					SamplingController.siblingUUID(valueCharacteristic.getUUID(), 2));
+			if ((configuration == null) || (period == null))
+				throw new IllegalArgumentException(
+						"No configuration and period characteristics for "
+								+ valueCharacteristic.getUUID());
+
+			this.sensors.putIfAbsent(key, new Sensor(valueCharacteristic,
+					configuration, period, deviceAddress));
+			sensor = this.sensors.get(key);
+		}
+
+		SamplingDemand demand = new SamplingDemand(key, periodMillis,
+				(enableConfiguration != null) ? enableConfiguration.clone()
+						: SamplingController.DEFAULT_ENABLE,
+				this);
+		synchronized (sensor)
+		{
+			// configurations are merged byte by byte
+			int length = demand.getEnableConfiguration().length;
+			if ((!sensor.demands.isEmpty()) && (length != sensor.demands
+					.get(0).getEnableConfiguration().length))
+				throw new IllegalArgumentException("Enable configuration of "
+						+ key + " not matching the length of the active ones: "
+						+ length + " bytes");
+			sensor.demands.add(demand);
+		}
+		this.update(sensor);
+
+		return demand;
+	}
+
+	/**
+	 * Releases the given demand, called by {@link SamplingDemand#release()}.
+	 * 
+	 * @param demand
+	 *            The demand to release.
+	 */
+	void release(SamplingDemand demand)
+	{
+		Sensor sensor = this.sensors.get(demand.getKey());
+		if (sensor != null)
+		{
+			synchronized (sensor)
+			{
+				sensor.demands.remove(demand);
+			}
+			this.update(sensor);
+		}
+	}
+
+	/**
+	 * Applies again the current demand of all the sensors of the given
+	 * device, e.g., after a reconnection.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device.
+	 */
+	void reapply(String deviceAddress)
+	{
+		for (Sensor sensor : this.sensors.values())
+			if (sensor.deviceAddress.equals(deviceAddress))
+				this.reapply(sensor);
+	}
+
+	/**
+	 * Applies again the current demand of the given sensor, if any, e.g., when
+	 * its notifications are enabled.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the sensor.
+	 * @param uuid
+	 *            The UUID of the sensor value characteristic.
+	 */
+	void reapply(String deviceAddress, String uuid)
+	{
+		Sensor sensor = this.sensors
+				.get(NotificationChannel.keyOf(deviceAddress, uuid));
+		if (sensor != null)
+			this.reapply(sensor);
+	}
+
+	/**
+	 * Forces a full write of the current demand of the given sensor; sensors
+	 * without demand are left alone, as they are off after a reconnection.
+	 */
+	private void reapply(Sensor sensor)
+	{
+		synchronized (sensor)
+		{
+			if (sensor.demands.isEmpty())
+				return;
+			sensor.stale = true;
+			sensor.failures = 0;
+		}
+		this.update(sensor);
+	}
+
+	/**
+	 * Provides the period currently applied to the given sensor.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the sensor.
+	 * @param uuid
+	 *            The UUID of the sensor value characteristic.
+	 * @return The period in milliseconds, 0 if the sensor is off, -1 if the
+	 *         sensor has never been configured or its state is unknown, e.g.,
+	 *         after a failed write.
+	 */
+	long getAppliedPeriod(String deviceAddress, String uuid)
+	{
+		Sensor sensor = this.sensors
+				.get(NotificationChannel.keyOf(deviceAddress, uuid));
+		return (sensor != null) ? sensor.appliedPeriod : -1;
+	}
+
+	/**
+	 * Schedules the configuration of the given sensor, unless already
+	 * scheduled.
+	 */
+	private void update(final Sensor sensor)
+	{
+		synchronized (sensor)
+		{
+			if (sensor.writePending)
+				return;
+			sensor.writePending = true;
+		}
+
+		try
+		{
+			this.client.submit(new Callable<Void>()
+			{
+				@Override
+				public Void call() throws Exception
+				{
+					SamplingController.this.apply(sensor);
+					return null;
+				}
+			});
+		}
+		catch (RejectedExecutionException e)
+		{
+			// the service is shutting down
+			synchronized (sensor)
+			{
+				sensor.writePending = false;
+			}
+		}
+	}
+
+	/**
+	 * Writes the configuration and period matching the current demand, on the
+	 * GATT scheduler thread.
+	 */
+	private void apply(Sensor sensor)
+	{
+		// the target state, computed at write time to coalesce changes
+		long target;
+		byte[] configuration;
+		synchronized (sensor)
+		{
+			sensor.writePending = false;
+
+			// forget the applied state, if no longer valid
+			if (sensor.stale)
+			{
+				sensor.stale = false;
+				sensor.appliedPeriod = -1;
+			}
+
+			target = Long.MAX_VALUE;
+			configuration = null;
+			for (SamplingDemand demand : sensor.demands)
+			{
+				target = Math.min(target, demand.getPeriodMillis());
+
+				// enable whatever any demand enables
+				byte[] enable = demand.getEnableConfiguration();
+				if (configuration == null)
+					configuration = enable.clone();
+				else
+					for (int i = 0; i < configuration.length; i++)
+						configuration[i] |= enable[i];
+			}
+		}
+
+		// an unknown state is fully written
+		boolean unknown = (sensor.appliedPeriod < 0);
+
+		try
+		{
+			if (configuration == null)
+			{
+				// no demand, turn the sensor off; the notifications may stay
+				// enabled, their silence is not a stall
+				if (sensor.appliedPeriod != 0)
+				{
+					this.watchdog.setSupervised(sensor.deviceAddress,
+							sensor.value.getUUID(), false);
+					byte[] off = new byte[(sensor.appliedConfiguration != null)
+							? sensor.appliedConfiguration.length : 1];
+					sensor.configuration.writeValue(off);
+					sensor.appliedConfiguration = off;
+					sensor.appliedPeriod = 0;
+				}
+				this.succeeded(sensor);
+				return;
+			}
+
+			// the period, in units of 10ms
+			int units = (int) Math.max(SamplingController.MIN_PERIOD_UNITS,
+					Math.min(SamplingController.MAX_PERIOD_UNITS,
+							(target + 5) / 10));
+
+			// set the period before enabling, not to stream at a wrong rate
+			if (sensor.appliedPeriod != units * 10L)
+				sensor.period.writeValue(new byte[] { (byte) units });
+			if ((unknown) || (!Arrays.equals(configuration,
+					sensor.appliedConfiguration)))
+			{
+				sensor.configuration.writeValue(configuration);
+				sensor.appliedConfiguration = configuration;
+			}
+			sensor.appliedPeriod = units * 10L;
+			this.watchdog.setExpectedPeriod(sensor.deviceAddress,
+					sensor.value.getUUID(), units * 10L);
+			this.watchdog.setSupervised(sensor.deviceAddress,
+					sensor.value.getUUID(), true);
+			this.succeeded(sensor);
+		}
+		catch (RuntimeException e)
+		{
+			// the device may be disconnected, force a full write and retry
+			sensor.appliedPeriod = -1;
+			this.retry(sensor);
+		}
+	}
+
+	/**
+	 * Resets the failed writes count of the given sensor.
+	 */
+	private void succeeded(Sensor sensor)
+	{
+		synchronized (sensor)
+		{
+			sensor.failures = 0;
+		}
+	}
+
+	/**
+	 * Schedules the configuration of the given sensor once its device is
+	 * connected, unless too many writes failed in a row: the demand is then
+	 * applied again at the next demand change, connection or notification
+	 * enabling.
+	 */
+	private void retry(final Sensor sensor)
+	{
+		synchronized (sensor)
+		{
+			if (sensor.failures >= SamplingController.MAX_WRITE_RETRIES)
+				return;
+			sensor.failures++;
+		}
+
+		this.retryEngine.submit(new RetryEngine.Lookup<Void>()
+		{
+			@Override
+			public boolean attempt()
+			{
+				// wait for the device to be back
+				if (!sensor.value.getService().getDevice().getConnected())
+					return false;
+				SamplingController.this.update(sensor);
+				return true;
+			}
+
+			@Override
+			public Void getResult()
+			{
+				return null;
+			}
+		}, RetryPolicy.fixed(BluetoothServiceImpl.RETRY_AFTER_MILLIS, -1)
+				.withTimeout(BluetoothServiceImpl.RETRY_AFTER_MILLIS
+						* SamplingController.MAX_WRITE_RETRIES),
+				null);
+	}
+
+	/**
+	 * Derives the UUID of a characteristic following the given one in the
+	 * SensorTag layout, e.g., f000aa02-... from f000aa01-... with offset 1.
+	 */
+	static String siblingUUID(String uuid, int offset)
+	{
+		int shortUUID = Integer.parseInt(uuid.substring(4, 8), 16) + offset;
+		return uuid.substring(0, 4)
+				+ String.format("%04x", shortUUID & 0xffff)
+				+ uuid.substring(8);
+	}
+}
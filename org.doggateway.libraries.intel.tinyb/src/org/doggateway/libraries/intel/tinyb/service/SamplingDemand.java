@@ -0,0 +1,114 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * The sampling period required by a client for a sensor characteristic,
+ * issued through
+ * {@link BluetoothService#requestSampling(tinyb.BluetoothGattCharacteristic, long, byte[])}
+ * . The sensor samples at the shortest period among the active demands and is
+ * turned off when no demand is active. Demands must be released when the
+ * client no longer needs the sensor data.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class SamplingDemand
+{
+	// the key of the demanded characteristic
+	private final String key;
+
+	// the required sampling period, in milliseconds
+	private final long periodMillis;
+
+	// the configuration value enabling the sensor
+	private final byte[] enableConfiguration;
+
+	// the controller handling the demand
+	private final SamplingController controller;
+
+	// the released flag
+	private volatile boolean released;
+
+	/**
+	 * Creates a new demand.
+	 * 
+	 * @param key
+	 *            The key of the demanded characteristic.
+	 * @param periodMillis
+	 *            The required sampling period, in milliseconds.
+	 * @param enableConfiguration
+	 *            The configuration value enabling the sensor.
+	 * @param controller
+	 *            The controller handling the demand.
+	 */
+	SamplingDemand(String key, long periodMillis, byte[] enableConfiguration,
+			SamplingController controller)
+	{
+		this.key = key;
+		this.periodMillis = periodMillis;
+		this.enableConfiguration = enableConfiguration;
+		this.controller = controller;
+	}
+
+	/**
+	 * @return the key of the demanded characteristic
+	 */
+	String getKey()
+	{
+		return this.key;
+	}
+
+	/**
+	 * @return the configuration value enabling the sensor
+	 */
+	byte[] getEnableConfiguration()
+	{
+		return this.enableConfiguration;
+	}
+
+	/**
+	 * @return the required sampling period, in milliseconds
+	 */
+	public long getPeriodMillis()
+	{
+		return this.periodMillis;
+	}
+
+	/**
+	 * @return true if the demand has been released, false otherwise
+	 */
+	public boolean isReleased()
+	{
+		return this.released;
+	}
+
+	/**
+	 * Releases the demand, the sensor period is relaxed, or the sensor is
+	 * turned off, as soon as no active demand needs it anymore. Releasing an
+	 * already released demand has no effect.
+	 */
+	public void release()
+	{
+		if (!this.released)
+		{
+			this.released = true;
+			this.controller.release(this);
+		}
+	}
+}
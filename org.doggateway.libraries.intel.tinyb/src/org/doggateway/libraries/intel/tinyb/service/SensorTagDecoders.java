@@ -0,0 +1,165 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * {@link PayloadDecoder}s for the sensors of the TI SensorTag CC2650, see
+ * http://processors.wiki.ti.com/index.php/CC2650_SensorTag_User's_Guide for
+ * the payload formats.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public final class SensorTagDecoders
+{
+	// the gyroscope scale, in deg/s per LSB
+	public static final float GYRO_SCALE = 500f / 65536f;
+
+	// the magnetometer scale, in uT per LSB
+	public static final float MAGNETOMETER_SCALE = 1f;
+
+	/**
+	 * IR temperature (f000aa01...): object and ambient temperature, in
+	 * Celsius degrees.
+	 */
+	public static final PayloadDecoder TEMPERATURE = new PayloadDecoder()
+	{
+		@Override
+		public int getValueCount()
+		{
+			return 2;
+		}
+
+		@Override
+		public int decode(byte[] payload, float[] values)
+		{
+			if (payload.length < 4)
+				return 0;
+
+			values[0] = SensorTagDecoders.int16(payload, 0) / 128f;
+			values[1] = SensorTagDecoders.int16(payload, 2) / 128f;
+			return 2;
+		}
+	};
+
+	/**
+	 * Humidity (f000aa21...): temperature, in Celsius degrees, and relative
+	 * humidity, in percent.
+	 */
+	public static final PayloadDecoder HUMIDITY = new PayloadDecoder()
+	{
+		@Override
+		public int getValueCount()
+		{
+			return 2;
+		}
+
+		@Override
+		public int decode(byte[] payload, float[] values)
+		{
+			if (payload.length < 4)
+				return 0;
+
+			values[0] = (SensorTagDecoders.uint16(payload, 0) / 65536f) * 165
+					- 40;
+			values[1] = (SensorTagDecoders.uint16(payload, 2) / 65536f) * 100;
+			return 2;
+		}
+	};
+
+	/**
+	 * Utility class, not meant to be instantiated
+	 */
+	private SensorTagDecoders()
+	{
+	}
+
+	/**
+	 * Provides the accelerometer scale, in G per LSB, for the given range
+	 * configuration.
+	 * 
+	 * @param accelerometerRange
+	 *            The accelerometer range configuration, as written in the
+	 *            second byte of the movement configuration characteristic
+	 *            (0: 2G, 1: 4G, 2: 8G, 3: 16G).
+	 * @return The accelerometer scale.
+	 */
+	public static float accelerometerScale(int accelerometerRange)
+	{
+		return (2 << (accelerometerRange & 0x03)) / 32768f;
+	}
+
+	/**
+	 * Provides a decoder for the movement sensor (f000aa81...): gyroscope x,
+	 * y, z in deg/s, accelerometer x, y, z in G and magnetometer x, y, z in uT.
+	 * 
+	 * @param accelerometerRange
+	 *            The accelerometer range configuration (0: 2G, 1: 4G, 2: 8G,
+	 *            3: 16G).
+	 * @return The decoder.
+	 */
+	public static PayloadDecoder movement(int accelerometerRange)
+	{
+		final float accScale = SensorTagDecoders
+				.accelerometerScale(accelerometerRange);
+
+		return new PayloadDecoder()
+		{
+			@Override
+			public int getValueCount()
+			{
+				return 9;
+			}
+
+			@Override
+			public int decode(byte[] payload, float[] values)
+			{
+				if (payload.length < 18)
+					return 0;
+
+				for (int i = 0; i < 3; i++)
+				{
+					values[i] = SensorTagDecoders.int16(payload, i * 2)
+							* SensorTagDecoders.GYRO_SCALE;
+					values[i + 3] = SensorTagDecoders.int16(payload, 6 + i * 2)
+							* accScale;
+					values[i + 6] = SensorTagDecoders.int16(payload, 12 + i * 2)
+							* SensorTagDecoders.MAGNETOMETER_SCALE;
+				}
+				return 9;
+			}
+		};
+	}
+
+	/**
+	 * Reads a little endian signed 16 bit integer.
+	 */
+	static int int16(byte[] payload, int offset)
+	{
+		return (short) ((payload[offset] & 0xff)
+				| (payload[offset + 1] << 8));
+	}
+
+	/**
+	 * Reads a little endian unsigned 16 bit integer.
+	 */
+	static int uint16(byte[] payload, int offset)
+	{
+		return (payload[offset] & 0xff) | ((payload[offset + 1] & 0xff) << 8);
+	}
+}
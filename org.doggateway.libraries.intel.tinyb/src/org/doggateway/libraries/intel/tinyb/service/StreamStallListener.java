@@ -0,0 +1,53 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * Receives liveness events about the notification streams handled by the
+ * {@link BluetoothService}: a stream is considered stalled when no
+ * notification is received for a given number of expected notification
+ * periods. Methods are called on the service threads and shall not block.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public interface StreamStallListener
+{
+	/**
+	 * Called when the notifications of the given characteristic stop.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The characteristic UUID.
+	 * @param silenceMillis
+	 *            The time elapsed since the last notification, in
+	 *            milliseconds.
+	 */
+	public void stalled(String deviceAddress, String UUID, long silenceMillis);
+
+	/**
+	 * Called when a stalled stream delivers notifications again.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param UUID
+	 *            The characteristic UUID.
+	 */
+	public void resumed(String deviceAddress, String UUID);
+}
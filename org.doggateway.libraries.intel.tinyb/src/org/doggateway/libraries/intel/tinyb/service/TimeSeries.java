@@ -0,0 +1,294 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A bounded, in-memory time series of the values decoded from the
+ * notifications of a single characteristic. Samples are stored column-wise,
+ * in a primitive timestamp column and in one primitive column per decoded
+ * value, used as rings: the oldest samples are evicted when the series is
+ * full or when they get older than the configured maximum age.
+ * <p>
+ * Range queries locate their bounds by binary search on the timestamp column
+ * and then scan the needed column sequentially; they never allocate, results
+ * being written in caller-provided arrays or {@link TimeSeriesAggregate}s.
+ * Any number of queries can run concurrently, the single writer is the thread
+ * delivering the notifications of the characteristic.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public class TimeSeries
+{
+	// the sample timestamps, in milliseconds since the epoch
+	private final long[] timestamps;
+
+	// the value columns, one per decoded value
+	private final float[][] columns;
+
+	// the maximum sample age in milliseconds, negative for no age limit
+	private final long maxAgeMillis;
+
+	// the lock shared by readers and taken exclusively by the writer
+	private final ReentrantReadWriteLock lock;
+
+	// the ring index of the oldest sample
+	private int head;
+
+	// the number of stored samples
+	private int size;
+
+	/**
+	 * Creates an empty time series.
+	 * 
+	 * @param columnCount
+	 *            The number of values per sample.
+	 * @param capacity
+	 *            The maximum number of stored samples.
+	 * @param maxAgeMillis
+	 *            The maximum age of stored samples in milliseconds, a
+	 *            non-positive value disables age-based eviction.
+	 */
+	TimeSeries(int columnCount, int capacity, long maxAgeMillis)
+	{
+		if ((columnCount < 1) || (capacity < 1))
+			throw new IllegalArgumentException("Invalid time series geometry: "
+					+ columnCount + " columns of " + capacity + " samples");
+
+		this.timestamps = new long[capacity];
+		this.columns = new float[columnCount][capacity];
+		this.maxAgeMillis = (maxAgeMillis > 0) ? maxAgeMillis : -1;
+		this.lock = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * @return the number of values per sample
+	 */
+	public int getColumnCount()
+	{
+		return this.columns.length;
+	}
+
+	/**
+	 * @return the maximum number of stored samples
+	 */
+	public int getCapacity()
+	{
+		return this.timestamps.length;
+	}
+
+	/**
+	 * @return the number of currently stored samples
+	 */
+	public int size()
+	{
+		this.lock.readLock().lock();
+		try
+		{
+			return this.size;
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Appends a sample, evicting the samples exceeding the series capacity or
+	 * maximum age. Samples are expected in non-decreasing timestamp order,
+	 * older samples are stored with the timestamp of the newest one.
+	 * 
+	 * @param timestamp
+	 *            The sample timestamp, in milliseconds since the epoch.
+	 * @param values
+	 *            The sample values.
+	 * @param count
+	 *            The number of valid values, missing columns are stored as
+	 *            {@link Float#NaN}.
+	 */
+	void append(long timestamp, float[] values, int count)
+	{
+		this.lock.writeLock().lock();
+		try
+		{
+			int capacity = this.timestamps.length;
+
+			// keep the timestamp column sorted, as needed by binary searches
+			if ((this.size > 0) && (timestamp < this.timestamps[this.index(
+					this.size - 1)]))
+				timestamp = this.timestamps[this.index(this.size - 1)];
+
+			// evict by age
+			if (this.maxAgeMillis > 0)
+			{
+				while ((this.size > 0) && (this.timestamps[this.head] < timestamp
+						- this.maxAgeMillis))
+				{
+					this.head = (this.head + 1) % capacity;
+					this.size--;
+				}
+			}
+
+			// evict by size
+			if (this.size == capacity)
+			{
+				this.head = (this.head + 1) % capacity;
+				this.size--;
+			}
+
+			int tail = this.index(this.size);
+			this.timestamps[tail] = timestamp;
+			for (int i = 0; i < this.columns.length; i++)
+				this.columns[i][tail] = (i < count) ? values[i] : Float.NaN;
+			this.size++;
+		}
+		finally
+		{
+			this.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copies the samples of the given column having a timestamp in the given
+	 * range, oldest first, in the given arrays.
+	 * 
+	 * @param column
+	 *            The column index.
+	 * @param from
+	 *            The range start, inclusive, in milliseconds since the epoch.
+	 * @param to
+	 *            The range end, exclusive, in milliseconds since the epoch.
+	 * @param timestampsOut
+	 *            The array receiving the sample timestamps, may be null if
+	 *            not needed.
+	 * @param valuesOut
+	 *            The array receiving the sample values.
+	 * @return The number of copied samples, limited by the length of the
+	 *         given arrays.
+	 */
+	public int query(int column, long from, long to, long[] timestampsOut,
+			float[] valuesOut)
+	{
+		float[] values = this.columns[column];
+		int limit = valuesOut.length;
+		if (timestampsOut != null)
+			limit = Math.min(limit, timestampsOut.length);
+
+		this.lock.readLock().lock();
+		try
+		{
+			int start = this.lowerBound(from);
+			int count = Math.min(this.lowerBound(to) - start, limit);
+
+			for (int i = 0; i < count; i++)
+			{
+				int index = this.index(start + i);
+				valuesOut[i] = values[index];
+				if (timestampsOut != null)
+					timestampsOut[i] = this.timestamps[index];
+			}
+			return Math.max(count, 0);
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Aggregates the samples of the given column having a timestamp in the
+	 * given range; {@link Float#NaN} values are skipped.
+	 * 
+	 * @param column
+	 *            The column index.
+	 * @param from
+	 *            The range start, inclusive, in milliseconds since the epoch.
+	 * @param to
+	 *            The range end, exclusive, in milliseconds since the epoch.
+	 * @param aggregate
+	 *            The aggregate to fill, reset before aggregating.
+	 * @return The given aggregate.
+	 */
+	public TimeSeriesAggregate aggregate(int column, long from, long to,
+			TimeSeriesAggregate aggregate)
+	{
+		float[] values = this.columns[column];
+		aggregate.reset();
+
+		this.lock.readLock().lock();
+		try
+		{
+			int end = this.lowerBound(to);
+			for (int i = this.lowerBound(from); i < end; i++)
+			{
+				int index = this.index(i);
+				float value = values[index];
+				if (Float.isNaN(value))
+					continue;
+
+				if (aggregate.count == 0)
+					aggregate.first = this.timestamps[index];
+				aggregate.last = this.timestamps[index];
+				aggregate.count++;
+				aggregate.sum += value;
+				if (value < aggregate.min)
+					aggregate.min = value;
+				if (value > aggregate.max)
+					aggregate.max = value;
+			}
+			return aggregate;
+		}
+		finally
+		{
+			this.lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Finds the logical position of the first sample not older than the given
+	 * time, i.e., {@link #size} if all samples are older; to be called while
+	 * holding the lock.
+	 */
+	private int lowerBound(long time)
+	{
+		int low = 0;
+		int high = this.size;
+		while (low < high)
+		{
+			int middle = (low + high) >>> 1;
+			if (this.timestamps[this.index(middle)] < time)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+
+	/**
+	 * Converts a logical position, 0 being the oldest sample, into a ring
+	 * index.
+	 */
+	private int index(int position)
+	{
+		int index = this.head + position;
+		return (index < this.timestamps.length) ? index
+				: index - this.timestamps.length;
+	}
+}
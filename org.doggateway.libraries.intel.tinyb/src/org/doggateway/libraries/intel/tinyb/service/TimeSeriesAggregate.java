@@ -0,0 +1,112 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+/**
+ * The aggregate of a {@link TimeSeries} column over a time range. Instances
+ * are meant to be reused by callers across queries, to avoid allocations.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public class TimeSeriesAggregate
+{
+	// the number of aggregated samples
+	int count;
+
+	// the minimum, maximum and sum of the aggregated values
+	float min;
+	float max;
+	double sum;
+
+	// the timestamps of the first and last aggregated samples
+	long first;
+	long last;
+
+	/**
+	 * Resets the aggregate, before a new query.
+	 */
+	void reset()
+	{
+		this.count = 0;
+		this.min = Float.POSITIVE_INFINITY;
+		this.max = Float.NEGATIVE_INFINITY;
+		this.sum = 0;
+		this.first = 0;
+		this.last = 0;
+	}
+
+	/**
+	 * @return the number of aggregated samples
+	 */
+	public int getCount()
+	{
+		return this.count;
+	}
+
+	/**
+	 * @return the minimum value, {@link Float#NaN} if no sample has been
+	 *         aggregated
+	 */
+	public float getMin()
+	{
+		return (this.count > 0) ? this.min : Float.NaN;
+	}
+
+	/**
+	 * @return the maximum value, {@link Float#NaN} if no sample has been
+	 *         aggregated
+	 */
+	public float getMax()
+	{
+		return (this.count > 0) ? this.max : Float.NaN;
+	}
+
+	/**
+	 * @return the sum of the aggregated values
+	 */
+	public double getSum()
+	{
+		return this.sum;
+	}
+
+	/**
+	 * @return the mean value, {@link Double#NaN} if no sample has been
+	 *         aggregated
+	 */
+	public double getMean()
+	{
+		return (this.count > 0) ? this.sum / this.count : Double.NaN;
+	}
+
+	/**
+	 * @return the timestamp of the first aggregated sample
+	 */
+	public long getFirstTimestamp()
+	{
+		return this.first;
+	}
+
+	/**
+	 * @return the timestamp of the last aggregated sample
+	 */
+	public long getLastTimestamp()
+	{
+		return this.last;
+	}
+}
@@ -0,0 +1,168 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Feeds the {@link TimeSeries} tracked for subscribed characteristics,
+ * decoding every notification with the {@link PayloadDecoder} given at
+ * registration time. Series can be registered before the characteristic is
+ * subscribed and survive un-subscriptions, until explicitly removed.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+class TimeSeriesStore implements NotificationStage
+{
+	/**
+	 * A tracked series together with its decoder.
+	 */
+	private static class Entry
+	{
+		// the series
+		final TimeSeries series;
+
+		// the payload decoder
+		final PayloadDecoder decoder;
+
+		// the decoded values, reused by the single notification thread
+		final float[] decoded;
+
+		Entry(TimeSeries series, PayloadDecoder decoder)
+		{
+			this.series = series;
+			this.decoder = decoder;
+			this.decoded = new float[decoder.getValueCount()];
+		}
+	}
+
+	// the tracked series, indexed by channel key
+	private final ConcurrentHashMap<String, Entry> entries;
+
+	/**
+	 * Creates an empty store.
+	 */
+	TimeSeriesStore()
+	{
+		this.entries = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * Starts tracking the values notified by the given characteristic,
+	 * replacing any series previously tracked for it.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @param decoder
+	 *            The decoder extracting sample values from notifications.
+	 * @param capacity
+	 *            The maximum number of stored samples.
+	 * @param maxAgeMillis
+	 *            The maximum sample age in milliseconds, non-positive for no
+	 *            age limit.
+	 * @return The new series.
+	 */
+	TimeSeries track(String deviceAddress, String uuid, PayloadDecoder decoder,
+			int capacity, long maxAgeMillis)
+	{
+		TimeSeries series = new TimeSeries(decoder.getValueCount(), capacity,
+				maxAgeMillis);
+		this.entries.put(NotificationChannel.keyOf(deviceAddress, uuid),
+				new Entry(series, decoder));
+		return series;
+	}
+
+	/**
+	 * Stops tracking the values notified by the given characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 */
+	void untrack(String deviceAddress, String uuid)
+	{
+		this.entries.remove(NotificationChannel.keyOf(deviceAddress, uuid));
+	}
+
+	/**
+	 * Provides the series tracked for the given characteristic.
+	 * 
+	 * @param deviceAddress
+	 *            The MAC address of the device hosting the characteristic.
+	 * @param uuid
+	 *            The characteristic UUID.
+	 * @return The series, or null if the characteristic is not tracked.
+	 */
+	TimeSeries get(String deviceAddress, String uuid)
+	{
+		Entry entry = this.entries
+				.get(NotificationChannel.keyOf(deviceAddress, uuid));
+		return (entry != null) ? entry.series : null;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelOpened(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelOpened(NotificationChannel channel)
+	{
+		// series are registered explicitly, nothing to do
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * channelClosed(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel)
+	 */
+	@Override
+	public void channelClosed(NotificationChannel channel)
+	{
+		// keep the series, the characteristic may be subscribed again
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.doggateway.libraries.intel.tinyb.service.NotificationStage#
+	 * process(org.doggateway.libraries.intel.tinyb.service.
+	 * NotificationChannel, byte[], long)
+	 */
+	@Override
+	public boolean process(NotificationChannel channel, byte[] value,
+			long timestamp)
+	{
+		Entry entry = this.entries.get(channel.getKey());
+		if (entry != null)
+		{
+			int count = entry.decoder.decode(value, entry.decoded);
+			if (count > 0)
+				entry.series.append(timestamp, entry.decoded, count);
+		}
+		return true;
+	}
+}
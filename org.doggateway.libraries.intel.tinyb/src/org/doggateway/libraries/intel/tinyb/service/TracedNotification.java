@@ -0,0 +1,45 @@
+/*
+ * Dog - Bluetooth Low Energy OSGi wrapper for Intel TinyB
+ * 
+ * Copyright (c) 2016 Dario Bonino 
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+package org.doggateway.libraries.intel.tinyb.service;
+
+import tinyb.BluetoothNotification;
+
+/**
+ * A notification listener receiving, together with every notified value, the
+ * {@link System#nanoTime()} at which the native callback fired, to measure
+ * the end-to-end latency up to the consumer. Listeners registered through
+ * {@link BluetoothService#enableValueNotifications(tinyb.BluetoothGattCharacteristic, BluetoothNotification)}
+ * implementing this interface get {@link #run(byte[], long)} called instead
+ * of {@link #run(Object)}.
+ *
+ * @author <a href="mailto:dario.bonino@gmail.com">Dario Bonino</a>
+ *
+ */
+public interface TracedNotification extends BluetoothNotification<byte[]>
+{
+	/**
+	 * Called when a value is notified.
+	 * 
+	 * @param value
+	 *            The notified value.
+	 * @param receivedNanos
+	 *            The {@link System#nanoTime()} at which the native callback
+	 *            fired.
+	 */
+	public void run(byte[] value, long receivedNanos);
+}